@@ -31,25 +31,35 @@ package org.cobaltians.cobalt;
 
 import org.cobaltians.cobalt.activities.CobaltActivity;
 import org.cobaltians.cobalt.customviews.BottomBar;
+import org.cobaltians.cobalt.database.LocalStorageStore;
 import org.cobaltians.cobalt.fragments.CobaltFragment;
 import org.cobaltians.cobalt.plugin.CobaltAbstractPlugin;
+import org.cobaltians.cobalt.plugin.CobaltPluginManager;
+import org.cobaltians.cobalt.webkit.CobaltAssetInterceptor;
+import org.cobaltians.cobalt.webkit.CobaltBundle;
 
+import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
 import android.support.annotation.AttrRes;
 import android.support.annotation.NonNull;
 import android.support.v7.app.ActionBar;
 import android.util.Log;
 import android.util.TypedValue;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -88,6 +98,7 @@ public class Cobalt {
     private final static String kPlugins = "plugins";
     private final static String kAndroid = "android";
     private final static String kDefaultController = "default";
+    private final static String kPreload = "preload";
 
     public final static String kBars = "bars";
     public final static String kBarsVisible = "visible";
@@ -117,6 +128,9 @@ public class Cobalt {
 
     public final static String kExtras = "extras";
     public final static String kPage = "page";
+    public final static String kController = "controller";
+    public final static String kTimelineNavigationTime = "timelineNavigationTime";
+    public final static String kTimelineActivityCreateTime = "timelineActivityCreateTime";
     public final static String kActivity = "activity";
     public final static String kPopAsModal = "popAsModal";
     public final static String kPushAsModal = "pushAsModal";
@@ -124,6 +138,25 @@ public class Cobalt {
     public final static String kInfiniteScroll = "infiniteScroll";
     public final static String kInfiniteScrollOffset = "infiniteScrollOffset";
     public final static String kSwipe = "swipe";
+    public final static String kCacheMode = "cacheMode";
+    public final static String CacheModeNetworkFirst = "networkFirst";
+    public final static String CacheModeCacheFirst = "cacheFirst";
+    public final static String CacheModeStaleWhileRevalidate = "staleWhileRevalidate";
+    public final static String kBridgeScript = "bridgeScript";
+
+    // LOCAL STORAGE
+    public final static String kLocalStorage = "localStorage";
+    public final static String kLocalStorageWriteBehind = "writeBehind";
+    public final static String kLocalStorageFlushInterval = "flushInterval";
+    public final static String kLocalStorageFlushBatchSize = "flushBatchSize";
+    public final static String kLocalStorageEngine = "engine";
+    public final static String LocalStorageEngineSQLite = "sqlite";
+    public final static String LocalStorageEngineLog = "log";
+    public final static String kLocalStorageNamespaces = "namespaces";
+    public final static String kLocalStorageQuota = "quota";
+    public final static String kLocalStorageDefaultQuota = "defaultQuota";
+    public final static String kLocalStorageNamespace = "localStorageNamespace";
+    public final static String LocalStorageNamespacePage = "@page";
 
     /**********************************************************************************************
      * JS KEYWORDS
@@ -155,6 +188,13 @@ public class Cobalt {
     public final static String JSEventOnAppForeground = "onAppForeground";
     public final static String JSEventOnPageShown = "onPageShown";
 
+    // LOCAL STORAGE EVENTS
+    public final static String JSEventOnStorageChanged = "onStorageChanged";
+    public final static String kJSStorageChanges = "changes";
+    public final static String kJSStorageKey = "key";
+    public final static String kJSStorageValue = "value";
+    public final static String kJSStorageCleared = "cleared";
+
     // INTENT
     public final static String JSTypeIntent = "intent";
     public final static String JSActionIntentOpenExternalUrl = "openExternalUrl";
@@ -163,6 +203,14 @@ public class Cobalt {
     // LOG
     public final static String JSTypeLog = "log";
 
+    // PERFORMANCE
+    public final static String JSTypePerf = "perf";
+    public final static String kJSPerfEntries = "entries";
+    public final static String kJSPerfEntryType = "entryType";
+    public final static String kJSPerfName = "name";
+    public final static String kJSPerfStartTime = "startTime";
+    public final static String kJSPerfDuration = "duration";
+
     // NAVIGATION
     public final static String JSTypeNavigation = "navigation";
     public final static String JSActionNavigationPush = "push";
@@ -245,15 +293,30 @@ public class Cobalt {
     public final static String JSTypePlugin = "plugin";
     public final static String kJSPluginName = "name";
 
+    // PLUGIN STREAM
+    public final static String kJSStream = "stream";
+    public final static String kJSStreamState = "state";
+    public final static String kJSStreamIndex = "index";
+    public final static String JSStreamStateChunk = "chunk";
+    public final static String JSStreamStateComplete = "complete";
+    public final static String JSStreamStateError = "error";
+    public final static String JSActionCancelStream = "cancelStream";
+
     /**********************************************************************************************
      * MEMBERS
      **********************************************************************************************/
 
     private static Cobalt sInstance;
     private static Context sContext;
+    // cobalt.conf and the resource path it was read from, guarded by sConfigurationLock
+    private static final Object sConfigurationLock = new Object();
     private static JSONObject sCobaltConfiguration;
+    private static String sConfigurationResourcePath;
+    private static boolean sPluginsPreloadStarted;
 
-    private String mResourcePath = "www/";
+    private volatile String mResourcePath = "www/";
+    // Bridge scripts by path, guarded by itself
+    private final HashMap<String, String> mBridgeScripts = new HashMap<>();
 
     private int mRunningActivities = 0;
     private boolean mFirstActivityStart = true;
@@ -275,21 +338,128 @@ public class Cobalt {
         return sInstance;
     }
 
+    /**
+     * Initializes Cobalt like {@link #getInstance(Context)}, then warms up what the first page needs while the application starts,
+     * so that the first {@link CobaltFragment} does not pay for it on the main thread:
+     * the WebView provider is loaded in background then started by a throwaway Web view once the main thread is idle,
+     * and the given Web resources are read in background, into the {@link CobaltAssetInterceptor} or from the {@link CobaltBundle}.
+     * Must be called on the main thread, typically from Application.onCreate.
+     * @param context: the context
+     * @param resourcePath: the resource path, as given to {@link #setResourcePath(String)}, or null to keep the default one
+     * @param files: the resources to prefetch relative to the resource path, like index.html and the cobalt.js script,
+     *             index.html if none is given
+     * @return the instance
+     */
+    public static Cobalt initAsync(Context context, String resourcePath, String... files) {
+        Cobalt cobalt = getInstance(context);
+        if (resourcePath != null) {
+            cobalt.setResourcePath(resourcePath);
+        }
+
+        cobalt.warmUp(files.length > 0 ? files : new String[] {"index.html"});
+        return cobalt;
+    }
+
     /**********************************************************************************************
      * GETTERS / SETTERS
      **********************************************************************************************/
 	
 	public String getResourcePath() {
-		return ASSETS_PATH + mResourcePath;
+        String resourcePath = mResourcePath;
+        if (resourcePath.startsWith(File.separator)) {
+            return "file://" + resourcePath;
+        }
+
+		return ASSETS_PATH + resourcePath;
 	}
-	
+
+    /**
+     * Sets the path of the Web resources, a folder or a {@link CobaltBundle} packed by the packCobaltBundle Gradle task,
+     * in the assets or at an absolute path. Pages loaded from then on use the new resources, and cobalt.conf is read again.
+     * @param resourcePath: the resource path, ending with / for folders or with {@link CobaltBundle#EXTENSION} for bundles
+     */
 	public void setResourcePath(String resourcePath) {
-        if (resourcePath != null) mResourcePath = resourcePath;
-        else mResourcePath = "";
+        String path = resourcePath != null ? resourcePath : "";
+        if (path.endsWith(CobaltBundle.EXTENSION)) {
+            path += "/";
+        }
+
+        if (! path.equals(mResourcePath)) {
+            mResourcePath = path;
+            synchronized (sConfigurationLock) {
+                sCobaltConfiguration = null;
+                sConfigurationResourcePath = null;
+            }
+            synchronized (mBridgeScripts) {
+                mBridgeScripts.clear();
+            }
+        }
 	}
 
     public String getResourcePathFromAsset() {return mResourcePath;}
 
+    /**
+     * @return true if the resource path is a {@link CobaltBundle} rather than a folder.
+     */
+    public boolean isResourceBundle() {
+        return mResourcePath.endsWith(CobaltBundle.EXTENSION + "/");
+    }
+
+    /**
+     * Opens the {@link CobaltBundle} of the resource path on first call.
+     * @return the bundle, or null if the resource path is a folder or the bundle could not be opened
+     */
+    public CobaltBundle getResourceBundle() {
+        String resourcePath = mResourcePath;
+        if (resourcePath.endsWith(CobaltBundle.EXTENSION + "/")) {
+            return CobaltBundle.get(sContext, resourcePath.substring(0, resourcePath.length() - 1));
+        }
+
+        return null;
+    }
+
+    /**
+     * Opens the given Web resource, from the bundle or the folder of the resource path.
+     * @param file: the resource path relative to the resource path
+     * @return the resource stream
+     * @throws IOException if the resource is not found
+     */
+    public InputStream openResource(String file) throws IOException {
+        return openResource(mResourcePath, file);
+    }
+
+    private InputStream openResource(String resourcePath, String file) throws IOException {
+        if (resourcePath.endsWith(CobaltBundle.EXTENSION + "/")) {
+            CobaltBundle bundle = CobaltBundle.get(sContext, resourcePath.substring(0, resourcePath.length() - 1));
+            if (bundle == null) {
+                throw new FileNotFoundException(resourcePath + file);
+            }
+            return bundle.open(file);
+        }
+        else if (resourcePath.startsWith(File.separator)) {
+            return new FileInputStream(resourcePath + file);
+        }
+        else {
+            return sContext.getAssets().open(resourcePath + file);
+        }
+    }
+
+    /**
+     * Returns the content of the bridge script a controller injects in its pages, read on first call and then kept in memory.
+     * @param file: the script path relative to the resource path, as set in the bridgeScript field of the controller
+     * @return the script, empty if it could not be read
+     */
+    public String getBridgeScript(String file) {
+        synchronized (mBridgeScripts) {
+            String script = mBridgeScripts.get(file);
+            if (script == null) {
+                script = readResource(file);
+                mBridgeScripts.put(file, script);
+            }
+            return script;
+        }
+    }
+
     public static Context getAppContext() {
         return sContext;
     }
@@ -310,7 +480,12 @@ public class Cobalt {
     }
 
     public void onActivityStopped(CobaltActivity activity) {
-        if (--mRunningActivities == 0) activity.onAppBackground();
+        if (--mRunningActivities == 0) {
+            // Persists pending LocalStorage writes while the process is still likely to be alive
+            LocalStorageStore.getInstance(sContext).requestFlush();
+
+            activity.onAppBackground();
+        }
     }
 
     /**********************************************************************************************
@@ -356,6 +531,7 @@ public class Cobalt {
                 // Instantiates intent only if class inherits from Activity
                 if (Activity.class.isAssignableFrom(pClass)) {
                     configuration.putString(kPage, page);
+                    configuration.putLong(kTimelineNavigationTime, System.nanoTime());
 
                     intent = new Intent(sContext, pClass);
                     intent.putExtra(kExtras, configuration);
@@ -386,6 +562,9 @@ public class Cobalt {
             boolean enableInfiniteScroll;
             int infiniteScrollOffset;
             String backgroundColor;
+            String localStorageNamespace;
+            String cacheMode;
+            String bridgeScript;
             // TODO: add enableGesture
 
             if (controller != null
@@ -396,6 +575,9 @@ public class Cobalt {
                 enableInfiniteScroll = controllers.getJSONObject(controller).optBoolean(kInfiniteScroll);
                 infiniteScrollOffset = controllers.getJSONObject(controller).optInt(kInfiniteScrollOffset, INFINITE_SCROLL_OFFSET_DEFAULT_VALUE);
                 backgroundColor = controllers.getJSONObject(controller).optString(kBackgroundColor, BACKGROUND_COLOR_DEFAULT);
+                localStorageNamespace = controllers.getJSONObject(controller).optString(kLocalStorageNamespace, null);
+                cacheMode = controllers.getJSONObject(controller).optString(kCacheMode, null);
+                bridgeScript = controllers.getJSONObject(controller).optString(kBridgeScript, null);
             }
             else {
                 activity = controllers.getJSONObject(kDefaultController).getString(kAndroid);
@@ -404,16 +586,23 @@ public class Cobalt {
                 enableInfiniteScroll = controllers.getJSONObject(kDefaultController).optBoolean(kInfiniteScroll);
                 infiniteScrollOffset = controllers.getJSONObject(kDefaultController).optInt(kInfiniteScrollOffset, INFINITE_SCROLL_OFFSET_DEFAULT_VALUE);
                 backgroundColor = controllers.getJSONObject(kDefaultController).optString(kBackgroundColor, BACKGROUND_COLOR_DEFAULT);
+                localStorageNamespace = controllers.getJSONObject(kDefaultController).optString(kLocalStorageNamespace, null);
+                cacheMode = controllers.getJSONObject(kDefaultController).optString(kCacheMode, null);
+                bridgeScript = controllers.getJSONObject(kDefaultController).optString(kBridgeScript, null);
             }
 
             if (activity.substring(0,1).equals(".")) activity = sContext.getPackageName() + activity;
 
+            bundle.putString(kController, controller != null && controllers.has(controller) ? controller : kDefaultController);
             bundle.putString(kActivity, activity);
             if (bars != null) bundle.putString(kBars, bars.toString());
             bundle.putBoolean(kPullToRefresh, enablePullToRefresh);
             bundle.putBoolean(kInfiniteScroll, enableInfiniteScroll);
             bundle.putInt(kInfiniteScrollOffset, infiniteScrollOffset);
             bundle.putString(kBackgroundColor, backgroundColor);
+            if (localStorageNamespace != null) bundle.putString(kLocalStorageNamespace, localStorageNamespace);
+            if (cacheMode != null) bundle.putString(kCacheMode, cacheMode);
+            if (bridgeScript != null) bundle.putString(kBridgeScript, bridgeScript);
 
             return bundle;
         }
@@ -428,6 +617,19 @@ public class Cobalt {
         return bundle;
     }
 
+    /**********************************************************************************************
+     * LOCAL STORAGE
+     **********************************************************************************************/
+
+    /**
+     * Returns the localStorage field of cobalt.conf, configuring the {@link LocalStorageStore}.
+     * @return the localStorage configuration, or an empty JSONObject if absent.
+     */
+    public JSONObject getLocalStorageConfiguration() {
+        JSONObject localStorage = getConfiguration().optJSONObject(kLocalStorage);
+        return localStorage != null ? localStorage : new JSONObject();
+    }
+
     /**********************************************************************************************
      * PLUGINS FILE
      **********************************************************************************************/
@@ -478,29 +680,169 @@ public class Cobalt {
         return pluginsMap;
     }
     
+    /**
+     * Returns the names of the plugins flagged with preload in cobalt.conf.
+     * @return the names of the plugins to instantiate in background at startup.
+     */
+    public ArrayList<String> getPluginsToPreload() {
+        ArrayList<String> pluginsToPreload = new ArrayList<>();
+
+        JSONObject plugins = getConfiguration().optJSONObject(kPlugins);
+        if (plugins != null) {
+            Iterator<String> pluginsIterator = plugins.keys();
+            while (pluginsIterator.hasNext()) {
+                String pluginName = pluginsIterator.next();
+                JSONObject plugin = plugins.optJSONObject(pluginName);
+                if (plugin != null
+                    && plugin.optBoolean(kPreload, false)) {
+                    pluginsToPreload.add(pluginName);
+                }
+            }
+        }
+
+        return pluginsToPreload;
+    }
+
+    /**
+     * Instantiates the plugins flagged with preload in cobalt.conf on a background thread,
+     * so that their first message does not wait for their initialization on the JavaBridge thread.
+     * Started by {@link #getConfiguration()} once cobalt.conf is first read, so that it reads the configuration of the resource path set by then.
+     */
+    private void preloadPlugins() {
+        Thread preloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                if (! getPluginsToPreload().isEmpty()) {
+                    CobaltPluginManager.getInstance(sContext).preloadPlugins();
+                }
+            }
+        }, "CobaltPluginPreload");
+        preloadThread.start();
+    }
+
     /**********************************************************************************************
-     * HELPER METHODS
+     * WARM-UP
      **********************************************************************************************/
 
-    private JSONObject getConfiguration() {
-        if (sCobaltConfiguration == null) {
-            String configuration = readFileFromAssets(mResourcePath + CONF_FILE);
+    private void warmUp(final String[] files) {
+        Thread warmUpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                long startTime = System.nanoTime();
+                prefetchResources(files);
+                if (Cobalt.DEBUG) Log.d(Cobalt.TAG, TAG + " - warmUp: resources prefetched in " + (System.nanoTime() - startTime) / 1000000 + "ms.");
+
+                startTime = System.nanoTime();
+                loadWebViewProvider();
+                if (Cobalt.DEBUG) Log.d(Cobalt.TAG, TAG + " - warmUp: WebView provider loaded in " + (System.nanoTime() - startTime) / 1000000 + "ms.");
+            }
+        }, "CobaltWarmUp");
+        warmUpThread.start();
+
+        // Web views must be created on the main thread, without delaying the messages already queued
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                long startTime = System.nanoTime();
+                try {
+                    new WebView(sContext).destroy();
+                    if (Cobalt.DEBUG) Log.d(Cobalt.TAG, TAG + " - warmUp: WebView started in " + (System.nanoTime() - startTime) / 1000000 + "ms.");
+                }
+                catch (RuntimeException exception) {
+                    // The WebView package may be missing or being updated, the first Web view will report it
+                    if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - warmUp: unable to start WebView.");
+                    exception.printStackTrace();
+                }
+                return false;
+            }
+        });
+    }
+
+    private void prefetchResources(String[] files) {
+        String resourcePath = mResourcePath;
+        if (isResourceBundle()) {
+            CobaltBundle bundle = getResourceBundle();
+            if (bundle != null) {
+                for (String file : files) {
+                    if (! bundle.prefetch(file)
+                        && Cobalt.DEBUG) {
+                        Log.w(Cobalt.TAG, TAG + " - prefetchResources: " + file + " not found in " + resourcePath);
+                    }
+                }
+            }
+        }
+        else if (! resourcePath.startsWith(File.separator)) {
+            CobaltAssetInterceptor assetInterceptor = CobaltAssetInterceptor.getInstance();
+            for (String file : files) {
+                assetInterceptor.prefetch(sContext, resourcePath + file);
+            }
+        }
+    }
+
+    /**
+     * Loads the WebView provider, its APK and native library, which can be done off the main thread.
+     */
+    @SuppressLint("NewApi")
+    private static void loadWebViewProvider() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             try {
-                sCobaltConfiguration = new JSONObject(configuration);
+                WebSettings.getDefaultUserAgent(sContext);
             }
-            catch (JSONException exception) {
-                if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - getConfiguration: check cobalt.conf. File is missing or not at " + ASSETS_PATH + mResourcePath + CONF_FILE);
+            catch (RuntimeException exception) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - loadWebViewProvider: unable to load WebView provider.");
                 exception.printStackTrace();
-                return new JSONObject();
             }
         }
-        return sCobaltConfiguration;
     }
 
-    private String readFileFromAssets(String file) {
+    /**********************************************************************************************
+     * HELPER METHODS
+     **********************************************************************************************/
+
+    private JSONObject getConfiguration() {
+        boolean preloadPlugins = false;
+        JSONObject configuration;
+
+        synchronized (sConfigurationLock) {
+            // Read again if the resource path changed since, even while being read
+            String resourcePath = mResourcePath;
+            if (sCobaltConfiguration == null
+                || ! resourcePath.equals(sConfigurationResourcePath)) {
+                try {
+                    sCobaltConfiguration = new JSONObject(readResource(resourcePath, CONF_FILE));
+                    sConfigurationResourcePath = resourcePath;
+                }
+                catch (JSONException exception) {
+                    if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - getConfiguration: check cobalt.conf. File is missing or not at " + getResourcePath() + CONF_FILE);
+                    exception.printStackTrace();
+                    return new JSONObject();
+                }
+
+                if (! sPluginsPreloadStarted) {
+                    sPluginsPreloadStarted = true;
+                    preloadPlugins = true;
+                }
+            }
+            configuration = sCobaltConfiguration;
+        }
+
+        if (preloadPlugins) {
+            preloadPlugins();
+        }
+        return configuration;
+    }
+
+    private String readResource(String file) {
+        return readResource(mResourcePath, file);
+    }
+
+    private String readResource(String resourcePath, String file) {
         try {
-            AssetManager assetManager = sContext.getAssets();
-            InputStream inputStream = assetManager.open(file);
+            InputStream inputStream = openResource(resourcePath, file);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
             StringBuilder fileContent = new StringBuilder();
             int character;
@@ -512,10 +854,10 @@ public class Cobalt {
             return fileContent.toString();
         }
         catch (FileNotFoundException exception) {
-            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readFileFromAssets: " + file + "not found.");
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readResource: " + file + "not found.");
         }
         catch (IOException exception) {
-            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readFileFromAssets: IOException");
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readResource: IOException");
             exception.printStackTrace();
         }
 
@@ -36,6 +36,7 @@ import org.cobaltians.cobalt.customviews.ActionViewMenuItemListener;
 import org.cobaltians.cobalt.customviews.BottomBar;
 import org.cobaltians.cobalt.font.CobaltFontManager;
 import org.cobaltians.cobalt.fragments.CobaltFragment;
+import org.cobaltians.cobalt.metrics.CobaltTimeline;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -97,7 +98,9 @@ public abstract class CobaltActivity extends AppCompatActivity implements Action
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
+        long createTime = System.nanoTime();
 		super.onCreate(savedInstanceState);
+        CobaltTimeline.beginSection("activityCreate");
 
 		setContentView(getLayoutToInflate());
         sActivitiesArrayList.add(this);
@@ -129,6 +132,7 @@ public abstract class CobaltActivity extends AppCompatActivity implements Action
             mMenuListener = fragment;
 
             if (fragment != null) {
+                extras.putLong(Cobalt.kTimelineActivityCreateTime, createTime);
                 fragment.setArguments(extras);
                 mAnimatedTransition = bundle.getBoolean(Cobalt.kJSAnimated, true);
 
@@ -176,6 +180,8 @@ public abstract class CobaltActivity extends AppCompatActivity implements Action
         else {
             setupBars(null, null);
         }
+
+        CobaltTimeline.endSection();
     }
 
     @Override
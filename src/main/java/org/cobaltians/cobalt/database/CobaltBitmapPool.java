@@ -0,0 +1,144 @@
+/**
+ *
+ * CobaltBitmapPool
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Size-bounded pool of mutable bitmaps, reused as targets of decodes and downsamplings of the {@link CobaltImageCache}.
+ * From KitKat, a bitmap is reused for any size and config fitting in its allocation; before, only for its exact size and config.
+ */
+final class CobaltBitmapPool {
+
+    private final long mMaxSize;
+    // Least recently added first
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+    private long mSize;
+
+    /**
+     * @param maxSize: the maximum size of the pooled bitmaps, in bytes
+     */
+    CobaltBitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds the given bitmap to the pool, or recycles it if it cannot be reused.
+     * The bitmap must not be used by anyone anymore.
+     * @param bitmap: the bitmap
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = CobaltImageCache.getByteCount(bitmap);
+        if (! bitmap.isMutable()
+            || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        mBitmaps.addLast(bitmap);
+        mSize += size;
+
+        while (mSize > mMaxSize) {
+            Bitmap eldest = mBitmaps.removeFirst();
+            mSize -= CobaltImageCache.getByteCount(eldest);
+            eldest.recycle();
+        }
+    }
+
+    /**
+     * Removes from the pool a bitmap which can hold an image of the given size and config.
+     * From KitKat, the bitmap is reconfigured to the given size and config.
+     * @param width: the image width
+     * @param height: the image height
+     * @param config: the image config
+     * @return the bitmap, whose content is undefined, or null if none can be reused
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long byteCount = (long) width * height * getBytesPerPixel(config);
+
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            boolean reusable;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                reusable = bitmap.getAllocationByteCount() >= byteCount;
+            }
+            else {
+                reusable = bitmap.getWidth() == width
+                           && bitmap.getHeight() == height
+                           && bitmap.getConfig() == config;
+            }
+
+            if (reusable) {
+                iterator.remove();
+                mSize -= CobaltImageCache.getByteCount(bitmap);
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    bitmap.reconfigure(width, height, config);
+                }
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565
+            || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        else {
+            return 4;
+        }
+    }
+}
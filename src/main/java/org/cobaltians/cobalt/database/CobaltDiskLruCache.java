@@ -0,0 +1,430 @@
+/**
+ *
+ * CobaltDiskLruCache
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of files in a directory, evicted in least recently used order.
+ *
+ * Keys are hashed with SHA-1 to name the files. Entries are written to a temporary file then renamed, and every write,
+ * read and removal is appended to a journal, replayed at opening to restore the entries and their access order.
+ * The journal is rewritten once it has grown to twice the number of entries.
+ *
+ * Methods perform disk I/O and must not be called from the main thread.
+ */
+public final class CobaltDiskLruCache {
+
+    private static final String TAG = CobaltDiskLruCache.class.getSimpleName();
+
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+    private static final String JOURNAL_HEADER = "cobalt.disklrucache 1";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // The journal is not rewritten under this number of operations
+    private static final int JOURNAL_REWRITE_MIN_OPERATIONS = 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // Size of each entry by file name, in access order
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private Writer mJournalWriter;
+    private int mJournalOperationCount;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    /**
+     * @param directory: the directory of the cache, used by this cache only
+     * @param maxSize: the maximum size of the entries, in bytes
+     */
+    public CobaltDiskLruCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /*********************************************************
+     * ENTRIES
+     *********************************************************/
+
+    /**
+     * Returns the file of the entry for the given key and marks it as most recently used.
+     * @param key: the entry key
+     * @return the file, or null if there is no entry for this key
+     */
+    public synchronized File get(String key) {
+        if (! open()) {
+            return null;
+        }
+
+        String fileName = toFileName(key);
+        if (mEntries.get(fileName) == null) {
+            return null;
+        }
+
+        File file = new File(mDirectory, fileName);
+        if (! file.exists()) {
+            // Deleted behind our back
+            removeEntry(fileName);
+            return null;
+        }
+
+        journal(READ, fileName, -1);
+        return file;
+    }
+
+    /**
+     * Stores the given data for the given key, then evicts least recently used entries if the cache exceeds its maximum size.
+     * @param key: the entry key
+     * @param data: the entry data
+     * @return true if the entry was stored
+     */
+    public synchronized boolean put(String key, byte[] data) {
+        if (! open()) {
+            return false;
+        }
+
+        String fileName = toFileName(key);
+        File tempFile = new File(mDirectory, fileName + TEMP_FILE_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(data);
+            outputStream.close();
+            outputStream = null;
+
+            if (! tempFile.renameTo(new File(mDirectory, fileName))) {
+                throw new IOException("unable to rename " + tempFile.getPath());
+            }
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - put: unable to write entry " + key + ".");
+            exception.printStackTrace();
+            closeQuietly(outputStream);
+            tempFile.delete();
+            return false;
+        }
+
+        Long previousSize = mEntries.put(fileName, (long) data.length);
+        mSize += data.length - (previousSize != null ? previousSize : 0);
+        journal(CLEAN, fileName, data.length);
+
+        trimToSize();
+        return true;
+    }
+
+    /**
+     * Removes the entry for the given key.
+     * @param key: the entry key
+     */
+    public synchronized void remove(String key) {
+        if (open()) {
+            String fileName = toFileName(key);
+            if (mEntries.containsKey(fileName)) {
+                new File(mDirectory, fileName).delete();
+                removeEntry(fileName);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        if (open()) {
+            for (String fileName : mEntries.keySet()) {
+                new File(mDirectory, fileName).delete();
+            }
+            mEntries.clear();
+            mSize = 0;
+
+            try {
+                rewriteJournal();
+            }
+            catch (IOException exception) {
+                if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - clear: unable to rewrite the journal.");
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the size of the entries, in bytes.
+     */
+    public synchronized long size() {
+        return open() ? mSize : 0;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /*********************************************************
+     * JOURNAL
+     *********************************************************/
+
+    /**
+     * Opens the cache on the first call, replaying the journal.
+     * @return true if the cache is open
+     */
+    private boolean open() {
+        if (mJournalWriter != null) {
+            return true;
+        }
+
+        if (! mDirectory.isDirectory()
+            && ! mDirectory.mkdirs()) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - open: unable to create " + mDirectory.getPath() + ".");
+            return false;
+        }
+
+        File journalFile = new File(mDirectory, JOURNAL_FILE_NAME);
+        if (journalFile.exists()) {
+            try {
+                readJournal(journalFile);
+            }
+            catch (IOException exception) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - open: journal is corrupted, clearing the cache.");
+                exception.printStackTrace();
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+
+        deleteUnknownFiles();
+
+        try {
+            rewriteJournal();
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - open: unable to write the journal.");
+            exception.printStackTrace();
+            return false;
+        }
+
+        trimToSize();
+        return true;
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            if (! JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3
+                    && CLEAN.equals(parts[0])) {
+                    long size = Long.parseLong(parts[2]);
+                    Long previousSize = mEntries.put(parts[1], size);
+                    mSize += size - (previousSize != null ? previousSize : 0);
+                }
+                else if (parts.length == 2
+                         && READ.equals(parts[0])) {
+                    mEntries.get(parts[1]);
+                }
+                else if (parts.length == 2
+                         && REMOVE.equals(parts[0])) {
+                    Long previousSize = mEntries.remove(parts[1]);
+                    if (previousSize != null) {
+                        mSize -= previousSize;
+                    }
+                }
+                // Ignores a line truncated by a crash
+            }
+        }
+        catch (NumberFormatException exception) {
+            throw new IOException("unexpected journal line");
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Deletes the files which are not entries, like temporary files of interrupted writes, and forgets entries without file.
+     */
+    private void deleteUnknownFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (! JOURNAL_FILE_NAME.equals(fileName)
+                    && ! mEntries.containsKey(fileName)) {
+                    file.delete();
+                }
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (! new File(mDirectory, entry.getKey()).exists()) {
+                mSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal containing the entries only, in access order, then replaces the current one.
+     */
+    private void rewriteJournal() throws IOException {
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+
+        File tempJournalFile = new File(mDirectory, JOURNAL_TEMP_FILE_NAME);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournalFile), UTF8));
+        try {
+            writer.write(JOURNAL_HEADER + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+
+        if (! tempJournalFile.renameTo(new File(mDirectory, JOURNAL_FILE_NAME))) {
+            throw new IOException("unable to rename " + tempJournalFile.getPath());
+        }
+
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(mDirectory, JOURNAL_FILE_NAME), true), UTF8));
+        mJournalOperationCount = 0;
+    }
+
+    private void journal(String operation, String fileName, long size) {
+        try {
+            mJournalWriter.write(operation + " " + fileName + (size >= 0 ? " " + size : "") + "\n");
+            mJournalWriter.flush();
+            mJournalOperationCount++;
+
+            if (mJournalOperationCount >= JOURNAL_REWRITE_MIN_OPERATIONS
+                && mJournalOperationCount >= 2 * mEntries.size()) {
+                rewriteJournal();
+            }
+        }
+        catch (IOException exception) {
+            // The journal will be rebuilt from the remaining files at the next opening
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - journal: unable to write " + operation + " " + fileName + ".");
+            exception.printStackTrace();
+        }
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private void removeEntry(String fileName) {
+        Long size = mEntries.remove(fileName);
+        if (size != null) {
+            mSize -= size;
+            journal(REMOVE, fileName, -1);
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize
+               && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+            journal(REMOVE, eldest.getKey(), -1);
+        }
+    }
+
+    /**
+     * @return the SHA-1 of the given key, in hexadecimal.
+     */
+    static String toFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+            StringBuilder fileName = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                fileName.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return fileName.toString();
+        }
+        catch (NoSuchAlgorithmException exception) {
+            // SHA-1 is always available on Android
+            throw new AssertionError(exception);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+}
@@ -31,73 +31,900 @@ package org.cobaltians.cobalt.database;
 
 import org.cobaltians.cobalt.Cobalt;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.util.Base64;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.ByteArrayOutputStream;
-import java.util.Hashtable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
-public class CobaltImageCache {
+/**
+ * Cache of the images shared between native code and Web views, in memory and on disk.
+ *
+ * In memory, images are evicted in least recently used order once their total size, measured with {@link Bitmap#getByteCount()},
+ * exceeds 1/8 of the maximum heap, and the cache is trimmed when the system is low on memory.
+ * Images in use may be pinned to prevent their eviction; pinned images do not count towards the cache size.
+ *
+ * Images are also written to a {@link CobaltDiskLruCache} in the cache directory, so they survive memory evictions and process death.
+ * Disk reads and writes run on a background thread: {@link #getImage(String)} returns null when the image is only on disk
+ * and loads it in memory for the next call, while {@link #getImage(String, OnImageLoadedListener)} delivers it when loaded.
+ * Images given to {@link #setImage(String, Bitmap)} must not be recycled, since they are compressed later in background.
+ *
+ * Images may be downsampled and converted on insertion with {@link CobaltImageOptions}, in background.
+ * Bitmaps created by the cache are reused by later decodes and downsamplings once evicted, unless they were handed out,
+ * since callers may still display them.
+ */
+public class CobaltImageCache implements ComponentCallbacks2 {
 
     private static final String TAG = CobaltImageCache.class.getSimpleName();
 
+    // The cache may use up to 1/MAX_SIZE_HEAP_DIVIDER of the maximum heap
+    private static final int MAX_SIZE_HEAP_DIVIDER = 8;
+
+    private static final String DISK_CACHE_DIRECTORY_NAME = "cobalt_images";
+    private static final long DISK_CACHE_MAX_SIZE = 32 * 1024 * 1024;
+    private static final int DISK_CACHE_JPEG_QUALITY = 90;
+
+    // The bitmap pool may use up to 1/BITMAP_POOL_SIZE_DIVIDER of the cache maximum size
+    private static final int BITMAP_POOL_SIZE_DIVIDER = 4;
+
     private static CobaltImageCache sInstance;
 
-    private Hashtable<String, Bitmap> mMapImages;
+    /**
+     * Listener of {@link #getImage(String, OnImageLoadedListener)}, called on the main thread.
+     */
+    public interface OnImageLoadedListener {
+        /**
+         * @param id: the image id
+         * @param image: the image, or null if it is neither in memory nor on disk
+         */
+        void onImageLoaded(String id, Bitmap image);
+    }
+
+    /**
+     * Listener of {@link #toBase64(String, OnBase64EncodedListener)}, called on the main thread.
+     */
+    public interface OnBase64EncodedListener {
+        /**
+         * @param id: the image id
+         * @param base64: the base64 JPEG, or null if the image is absent or could not be encoded
+         */
+        void onBase64Encoded(String id, String base64);
+    }
+
+    private final LruCache<String, Bitmap> mImages;
+    // Pinned images, removed from mImages until unpinned. Guarded by this
+    private final HashMap<String, PinnedImage> mPinnedImages = new HashMap<>();
+
+    // Disk tier, null if Cobalt is not initialized
+    private final CobaltDiskLruCache mDiskCache;
+    private final Handler mDiskHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Thread encoding and downsampling images, created on first use. Guarded by this
+    private Handler mProcessingHandler;
+    // Listeners of the images being loaded from disk. Guarded by this
+    private final HashMap<String, ArrayList<OnImageLoadedListener>> mPendingLoads = new HashMap<>();
+    // Token of the last asynchronous insertion of each id, cleared by synchronous insertions and removals. Guarded by this
+    private final HashMap<String, Object> mPendingInsertions = new HashMap<>();
+
+    private final CobaltBitmapPool mBitmapPool;
+    // Images created by the cache and never handed out, which may be reused once evicted. Guarded by this
+    private final Set<Bitmap> mReusableImages = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    // Guarded by this
+    private long mHitCount;
+    private long mMissCount;
+    private long mDiskHitCount;
+    private long mDiskMissCount;
 	
 	private CobaltImageCache() {
-        mMapImages = new Hashtable<> ();
+        int maxSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MAX_SIZE_HEAP_DIVIDER);
+        mImages = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String id, Bitmap image) {
+                return getByteCount(image);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String id, Bitmap oldImage, Bitmap newImage) {
+                // Removed images may still be used by the caller, only evicted ones are reusable
+                boolean reusable;
+                synchronized (CobaltImageCache.this) {
+                    reusable = evicted && mReusableImages.remove(oldImage);
+                }
+
+                if (reusable) {
+                    mBitmapPool.put(oldImage);
+                }
+            }
+        };
+        mBitmapPool = new CobaltBitmapPool(maxSize / BITMAP_POOL_SIZE_DIVIDER);
+
+        Context context = Cobalt.getAppContext();
+        if (context != null) {
+            context.registerComponentCallbacks(this);
+
+            mDiskCache = new CobaltDiskLruCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY_NAME), DISK_CACHE_MAX_SIZE);
+            HandlerThread diskThread = new HandlerThread("CobaltImageDiskCache", Process.THREAD_PRIORITY_BACKGROUND);
+            diskThread.start();
+            mDiskHandler = new Handler(diskThread.getLooper());
+        }
+        else {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - CobaltImageCache: Cobalt is not initialized, the cache will be in memory only and not trimmed on memory pressure.");
+            mDiskCache = null;
+            mDiskHandler = null;
+        }
 	}
 
-	public static CobaltImageCache getInstance() {
+	public static synchronized CobaltImageCache getInstance() {
 		if (sInstance  == null) {
 			sInstance = new CobaltImageCache();
 		}
 		
 		return sInstance;
 	}
+
+    /*********************************************************
+     * IMAGES
+     *********************************************************/
 	
-	public void setImage(String id, Bitmap image) {
+	public synchronized void setImage(String id, Bitmap image) {
         if (id != null
             && image != null) {
-            mMapImages.put(id, image);
+            // Supersedes pending asynchronous insertions
+            mPendingInsertions.remove(id);
+            storeImage(id, image, false);
         }
         else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setImage: id and image could not be null!");
 	}
+
+    /**
+     * Stores the given image for the given id once downsampled and converted according to the given options, in background.
+     * The given image is not modified nor recycled, and must not be recycled before the listener is called.
+     * @param id: the image id
+     * @param image: the image
+     * @param options: the insertion options
+     * @param listener: the listener called on the main thread with the stored image, may be null.
+     *                The image is the one stored in the meantime if this insertion was superseded.
+     */
+    public void setImage(final String id, final Bitmap image, final CobaltImageOptions options, final OnImageLoadedListener listener) {
+        if (id == null
+            || image == null
+            || options == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setImage: id, image and options could not be null!");
+            return;
+        }
+
+        final Object token = beginInsertion(id);
+        getProcessingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                int[] size = options.getTargetSize(image.getWidth(), image.getHeight());
+                Bitmap.Config config = options.getConfig() != null ? options.getConfig() : image.getConfig();
+                if (config == null) {
+                    config = Bitmap.Config.ARGB_8888;
+                }
+
+                if (size[0] == image.getWidth()
+                    && size[1] == image.getHeight()
+                    && config == image.getConfig()) {
+                    endInsertion(id, token, image, false, listener);
+                }
+                else {
+                    endInsertion(id, token, scale(image, size[0], size[1], config), true, listener);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the given encoded image and stores it for the given id once downsampled and converted according to the given options,
+     * in background. The image is subsampled while decoded, into a reused bitmap when possible.
+     * @param id: the image id
+     * @param data: the image encoded in a format supported by {@link BitmapFactory}
+     * @param options: the insertion options
+     * @param listener: the listener called on the main thread with the stored image, or null if it could not be decoded, may be null.
+     *                The image is the one stored in the meantime if this insertion was superseded.
+     */
+    public void setImage(final String id, final byte[] data, final CobaltImageOptions options, final OnImageLoadedListener listener) {
+        if (id == null
+            || data == null
+            || options == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setImage: id, data and options could not be null!");
+            return;
+        }
+
+        final Object token = beginInsertion(id);
+        getProcessingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap image = decode(null, data, options);
+                if (image == null) {
+                    if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setImage: image " + id + " could not be decoded.");
+                }
+                endInsertion(id, token, image, true, listener);
+            }
+        });
+    }
 	
-	public Bitmap getImage(String id) {
+	public synchronized Bitmap getImage(String id) {
         if (id != null) {
-            return mMapImages.get(id);
+            Bitmap image = handOut(findImage(id));
+            if (image != null) {
+                mHitCount++;
+            }
+            else {
+                mMissCount++;
+                // Loads the image in memory for the next call
+                loadFromDisk(id, null);
+            }
+
+            return image;
         }
         else {
             if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - getImage: id could not be null!");
             return null;
         }
 	}
+
+    /**
+     * Gets the image stored for the given id, from memory or else from disk, without blocking the calling thread.
+     * @param id: the image id
+     * @param listener: the listener called on the main thread with the image, or null if absent.
+     *                Called immediately if the image is in memory and this method is called on the main thread.
+     */
+    public void getImage(final String id, final OnImageLoadedListener listener) {
+        if (id == null
+            || listener == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - getImage: id and listener could not be null!");
+            return;
+        }
+
+        final Bitmap image;
+        synchronized (this) {
+            image = handOut(findImage(id));
+            if (image != null) {
+                mHitCount++;
+            }
+            else {
+                mMissCount++;
+                loadFromDisk(id, listener);
+                return;
+            }
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            listener.onImageLoaded(id, image);
+        }
+        else {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onImageLoaded(id, image);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the image stored in memory for the given id, without loading it from disk nor updating statistics.
+     * @param id: the image id
+     * @return the image, or null if not in memory
+     */
+    public synchronized Bitmap peekImage(String id) {
+        return id != null ? handOut(findImage(id)) : null;
+    }
+
+    /**
+     * Gets the image stored for the given id, from memory or else from disk, blocking the calling thread while loading it.
+     * Must not be called from the main thread.
+     * @param id: the image id
+     * @return the image, or null if neither in memory nor on disk
+     */
+    public Bitmap loadImage(String id) {
+        if (id == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - loadImage: id could not be null!");
+            return null;
+        }
+
+        synchronized (this) {
+            Bitmap image = handOut(findImage(id));
+            if (image != null) {
+                mHitCount++;
+                return image;
+            }
+            mMissCount++;
+        }
+
+        File file = mDiskCache != null ? mDiskCache.get(id) : null;
+        Bitmap diskImage = file != null ? decode(file.getPath(), null, null) : null;
+
+        synchronized (this) {
+            return handOut(onDiskImageLoaded(id, diskImage));
+        }
+    }
+
+    /**
+     * Gets the file of the image stored on disk for the given id, blocking the calling thread.
+     * The file may be more recent than the image in memory while it is being written. Must not be called from the main thread.
+     * @param id: the image id
+     * @return the file, or null if the image is not on disk
+     */
+    public File getImageFile(String id) {
+        return id != null && mDiskCache != null ? mDiskCache.get(id) : null;
+    }
+
+    /**
+     * Removes the image stored for the given id, even if pinned.
+     * @param id: the image id
+     */
+    public synchronized void removeImage(String id) {
+        if (id != null) {
+            mPendingInsertions.remove(id);
+
+            Bitmap image = findImage(id);
+            if (image != null) {
+                mReusableImages.remove(image);
+            }
+
+            mPinnedImages.remove(id);
+            mImages.remove(id);
+            removeFromDisk(id);
+        }
+        else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - removeImage: id could not be null!");
+    }
+
+    /*********************************************************
+     * DISK
+     *********************************************************/
+
+    private void writeToDisk(final String id, final Bitmap image) {
+        if (mDiskCache == null) {
+            return;
+        }
+
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (image.isRecycled()) {
+                    if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - writeToDisk: image " + id + " was recycled before being written to disk.");
+                    return;
+                }
+
+                // JPEG is smaller and faster to decode, but would lose transparency
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                if (image.hasAlpha()) {
+                    image.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+                }
+                else {
+                    image.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_JPEG_QUALITY, outputStream);
+                }
+
+                mDiskCache.put(id, outputStream.toByteArray());
+            }
+        });
+    }
+
+    private void removeFromDisk(final String id) {
+        if (mDiskCache == null) {
+            return;
+        }
+
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDiskCache.remove(id);
+            }
+        });
+    }
+
+    /**
+     * Loads the image stored on disk for the given id in memory, then calls the given listener, if any.
+     * Concurrent loads of the same image are merged. Must be called holding the lock.
+     */
+    private void loadFromDisk(final String id, OnImageLoadedListener listener) {
+        if (mDiskCache == null) {
+            if (listener != null) {
+                deliver(id, null, singletonList(listener));
+            }
+            return;
+        }
+
+        ArrayList<OnImageLoadedListener> listeners = mPendingLoads.get(id);
+        if (listeners != null) {
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            return;
+        }
+
+        listeners = new ArrayList<>(1);
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        mPendingLoads.put(id, listeners);
+
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                File file = mDiskCache.get(id);
+                Bitmap diskImage = file != null ? decode(file.getPath(), null, null) : null;
+
+                Bitmap image;
+                ArrayList<OnImageLoadedListener> pendingListeners;
+                synchronized (CobaltImageCache.this) {
+                    pendingListeners = mPendingLoads.remove(id);
+                    image = onDiskImageLoaded(id, diskImage);
+                    if (pendingListeners != null
+                        && ! pendingListeners.isEmpty()) {
+                        handOut(image);
+                    }
+                }
+
+                if (pendingListeners != null
+                    && ! pendingListeners.isEmpty()) {
+                    deliver(id, image, pendingListeners);
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts the image loaded from disk for the given id in memory. Must be called holding the lock.
+     * @return the image in memory, which is the one set while loading if any, as it is more recent than the one on disk
+     */
+    private Bitmap onDiskImageLoaded(String id, Bitmap diskImage) {
+        if (diskImage != null) {
+            mDiskHitCount++;
+        }
+        else {
+            mDiskMissCount++;
+        }
+
+        Bitmap image = findImage(id);
+        if (image == null
+            && diskImage != null) {
+            image = diskImage;
+            mReusableImages.add(image);
+            mImages.put(id, image);
+        }
+        else if (diskImage != null) {
+            mBitmapPool.put(diskImage);
+        }
+
+        return image;
+    }
+
+    private void deliver(final String id, final Bitmap image, final ArrayList<OnImageLoadedListener> listeners) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnImageLoadedListener listener : listeners) {
+                    listener.onImageLoaded(id, image);
+                }
+            }
+        });
+    }
+
+    private static ArrayList<OnImageLoadedListener> singletonList(OnImageLoadedListener listener) {
+        ArrayList<OnImageLoadedListener> listeners = new ArrayList<>(1);
+        listeners.add(listener);
+        return listeners;
+    }
+
+    /*********************************************************
+     * PROCESSING
+     *********************************************************/
+
+    /**
+     * Stores the given image in memory and on disk. Must be called holding the lock.
+     * @param reusable: true if the image was created by the cache, so it may be reused once evicted
+     */
+    private void storeImage(String id, Bitmap image, boolean reusable) {
+        Bitmap oldImage = findImage(id);
+        if (oldImage != null
+            && oldImage != image) {
+            // The replaced image may still be used by the caller
+            mReusableImages.remove(oldImage);
+        }
+
+        if (reusable) {
+            mReusableImages.add(image);
+        }
+
+        PinnedImage pinnedImage = mPinnedImages.get(id);
+        if (pinnedImage != null) {
+            pinnedImage.mImage = image;
+        }
+        else {
+            mImages.put(id, image);
+        }
+
+        writeToDisk(id, image);
+    }
+
+    private synchronized Object beginInsertion(String id) {
+        Object token = new Object();
+        mPendingInsertions.put(id, token);
+        return token;
+    }
+
+    /**
+     * Stores the image processed for the given id, unless a more recent insertion or removal happened in the meantime,
+     * then calls the given listener, if any.
+     */
+    private void endInsertion(String id, Object token, Bitmap image, boolean reusable, OnImageLoadedListener listener) {
+        Bitmap storedImage;
+        synchronized (this) {
+            if (mPendingInsertions.get(id) == token) {
+                mPendingInsertions.remove(id);
+                if (image != null) {
+                    storeImage(id, image, reusable);
+                }
+                storedImage = image;
+            }
+            else {
+                if (image != null
+                    && reusable) {
+                    mBitmapPool.put(image);
+                }
+                storedImage = findImage(id);
+            }
+
+            if (listener != null) {
+                handOut(storedImage);
+            }
+        }
+
+        if (listener != null) {
+            deliver(id, storedImage, singletonList(listener));
+        }
+    }
+
+    /**
+     * Decodes the image from the given file or data, subsampled as close as possible to the size allowed by the given options,
+     * into a reused bitmap when possible, then downsampled to the exact size if needed.
+     * @param path: the image file path, or null to decode data
+     * @param data: the image data, used if path is null
+     * @param options: the insertion options, or null to decode at full size in ARGB_8888
+     * @return the mutable decoded image, or null if it could not be decoded
+     */
+    private Bitmap decode(String path, byte[] data, CobaltImageOptions options) {
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inJustDecodeBounds = true;
+        decodeSource(path, data, decodeOptions);
+        if (decodeOptions.outWidth <= 0
+            || decodeOptions.outHeight <= 0) {
+            return null;
+        }
+
+        int width = decodeOptions.outWidth;
+        int height = decodeOptions.outHeight;
+        int[] size = options != null ? options.getTargetSize(width, height) : new int[] {width, height};
+        Bitmap.Config config = options != null && options.getConfig() != null ? options.getConfig() : Bitmap.Config.ARGB_8888;
+
+        // Subsamples by the largest power of 2 keeping the image at least as large as the target size
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size[0]
+               && height / (sampleSize * 2) >= size[1]) {
+            sampleSize *= 2;
+        }
+
+        decodeOptions.inJustDecodeBounds = false;
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inPreferredConfig = config;
+        decodeOptions.inMutable = true;
+        // Before KitKat, decoded bitmaps may only be reused for the same size without subsampling
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+            || sampleSize == 1) {
+            decodeOptions.inBitmap = mBitmapPool.get((width + sampleSize - 1) / sampleSize,
+                                                     (height + sampleSize - 1) / sampleSize,
+                                                     config);
+        }
+
+        Bitmap image;
+        try {
+            image = decodeSource(path, data, decodeOptions);
+        }
+        catch (IllegalArgumentException exception) {
+            // The bitmap could not be reused for this image format
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - decode: could not reuse bitmap, decoding in a new one.");
+            mBitmapPool.put(decodeOptions.inBitmap);
+            decodeOptions.inBitmap = null;
+            image = decodeSource(path, data, decodeOptions);
+        }
+
+        if (image == null) {
+            if (decodeOptions.inBitmap != null) {
+                mBitmapPool.put(decodeOptions.inBitmap);
+            }
+            return null;
+        }
+
+        if (image.getWidth() > size[0]
+            || image.getHeight() > size[1]) {
+            Bitmap scaledImage = scale(image, size[0], size[1], config);
+            mBitmapPool.put(image);
+            return scaledImage;
+        }
+
+        return image;
+    }
+
+    private static Bitmap decodeSource(String path, byte[] data, BitmapFactory.Options options) {
+        if (path != null) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        else {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Draws the given image, filtered, in a reused or new bitmap of the given size and config.
+     */
+    private Bitmap scale(Bitmap image, int width, int height, Bitmap.Config config) {
+        Bitmap scaledImage = mBitmapPool.get(width, height, config);
+        if (scaledImage != null) {
+            scaledImage.eraseColor(Color.TRANSPARENT);
+        }
+        else {
+            scaledImage = Bitmap.createBitmap(width, height, config);
+        }
+
+        Canvas canvas = new Canvas(scaledImage);
+        canvas.drawBitmap(image, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return scaledImage;
+    }
+
+    /*********************************************************
+     * PINNING
+     *********************************************************/
+
+    /**
+     * Prevents the image stored for the given id from being evicted until {@link #unpinImage(String)} is called as many times.
+     * @param id: the image id
+     * @return true if the image is pinned, false if no image is stored for this id
+     */
+    public synchronized boolean pinImage(String id) {
+        if (id == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - pinImage: id could not be null!");
+            return false;
+        }
+
+        PinnedImage pinnedImage = mPinnedImages.get(id);
+        if (pinnedImage == null) {
+            Bitmap image = mImages.remove(id);
+            if (image == null) {
+                return false;
+            }
+
+            pinnedImage = new PinnedImage(image);
+            mPinnedImages.put(id, pinnedImage);
+        }
+
+        pinnedImage.mPinCount++;
+        return true;
+    }
+
+    /**
+     * Releases a pin of the image stored for the given id.
+     * Once every pin is released, the image becomes the most recently used image of the cache.
+     * @param id: the image id
+     */
+    public synchronized void unpinImage(String id) {
+        if (id == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - unpinImage: id could not be null!");
+            return;
+        }
+
+        PinnedImage pinnedImage = mPinnedImages.get(id);
+        if (pinnedImage != null
+            && --pinnedImage.mPinCount == 0) {
+            mPinnedImages.remove(id);
+            mImages.put(id, pinnedImage.mImage);
+        }
+    }
+
+    /*********************************************************
+     * MEMORY
+     *********************************************************/
+
+    /**
+     * Evicts every image which is not pinned from memory. Images remain on disk.
+     */
+    public void evictAll() {
+        mImages.evictAll();
+        mBitmapPool.clear();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE
+            || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - onTrimMemory: evicting every unpinned image (level " + level + ").");
+            mImages.evictAll();
+            mBitmapPool.clear();
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND
+                 || level == TRIM_MEMORY_RUNNING_LOW) {
+            if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - onTrimMemory: trimming to half of the maximum size (level " + level + ").");
+            mImages.trimToSize(mImages.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mImages.evictAll();
+        mBitmapPool.clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+
+    /*********************************************************
+     * STATISTICS
+     *********************************************************/
+
+    /**
+     * @return a snapshot of the cache size and statistics since the application started.
+     */
+    public synchronized CobaltImageCacheStats getStats() {
+        long pinnedSize = 0;
+        for (PinnedImage pinnedImage : mPinnedImages.values()) {
+            pinnedSize += getByteCount(pinnedImage.mImage);
+        }
+
+        return new CobaltImageCacheStats(mHitCount, mMissCount, mImages.evictionCount(),
+                                         mImages.snapshot().size(), mImages.size(), mImages.maxSize(),
+                                         mPinnedImages.size(), pinnedSize,
+                                         mDiskHitCount, mDiskMissCount);
+    }
+
+    /*********************************************************
+     * ENCODING
+     *********************************************************/
 	
+    /**
+     * Encodes the image stored in memory for the given id to a base64 JPEG of at most 2097152 chars,
+     * longer strings failing to be sent on some devices.
+     * Encoding may take a while for large images: prefer {@link #toBase64(String, OnBase64EncodedListener)} on the main thread.
+     * @param id: the image id
+     * @return the base64 string, or null if the image is not in memory or could not be encoded
+     */
 	public String toBase64(String id) {
         String encodeImage = null;
 
         if (id != null) {
-            Bitmap bitmap = mMapImages.get(id);
+            Bitmap bitmap;
+            synchronized (this) {
+                bitmap = handOut(findImage(id));
+            }
 
             if (bitmap != null) {
-                int quality = 100;
-                //need this loop cause with some new device the length of url exceed 2097152 characters and fail upload
-                do {
-                    // compressing the image
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-                    // encode image
-                    encodeImage = Base64.encodeToString(baos.toByteArray(), Base64.NO_WRAP);
-                    quality -= 1;
-                }
-                while (encodeImage.length() > 2097152);
+                encodeImage = CobaltImageEncoder.toBase64(bitmap, CobaltImageEncoder.MAX_BASE64_LENGTH);
             }
         }
         else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - toBase64: id could not be null!");
 
         return encodeImage;
 	}
+
+    /**
+     * Encodes the image stored for the given id, in memory or on disk, to a base64 JPEG of at most 2097152 chars, in background.
+     * @param id: the image id
+     * @param listener: the listener called on the main thread with the base64 string, or null if absent or not encoded
+     */
+    public void toBase64(String id, OnBase64EncodedListener listener) {
+        toBase64(id, CobaltImageEncoder.MAX_BASE64_LENGTH, listener);
+    }
+
+    /**
+     * Encodes the image stored for the given id, in memory or on disk, to a base64 JPEG of at most the given length, in background.
+     * The JPEG quality is lowered, then the image downscaled, as little as needed to fit.
+     * @param id: the image id
+     * @param maxLength: the maximum length of the base64 string
+     * @param listener: the listener called on the main thread with the base64 string, or null if absent or not encoded
+     */
+    public void toBase64(String id, final int maxLength, final OnBase64EncodedListener listener) {
+        if (id == null
+            || listener == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - toBase64: id and listener could not be null!");
+            return;
+        }
+
+        getImage(id, new OnImageLoadedListener() {
+            @Override
+            public void onImageLoaded(final String id, final Bitmap image) {
+                if (image == null) {
+                    listener.onBase64Encoded(id, null);
+                    return;
+                }
+
+                getProcessingHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final String base64 = CobaltImageEncoder.toBase64(image, maxLength);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onBase64Encoded(id, base64);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized Handler getProcessingHandler() {
+        if (mProcessingHandler == null) {
+            HandlerThread processingThread = new HandlerThread("CobaltImageProcessor", Process.THREAD_PRIORITY_BACKGROUND);
+            processingThread.start();
+            mProcessingHandler = new Handler(processingThread.getLooper());
+        }
+
+        return mProcessingHandler;
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    /**
+     * Returns the image stored for the given id without updating statistics. Must be called holding the lock.
+     */
+    private Bitmap findImage(String id) {
+        PinnedImage pinnedImage = mPinnedImages.get(id);
+        return pinnedImage != null ? pinnedImage.mImage : mImages.get(id);
+    }
+
+    /**
+     * Prevents the given image from being reused once evicted, as the caller may keep it. Must be called holding the lock.
+     * @return the given image
+     */
+    private Bitmap handOut(Bitmap image) {
+        if (image != null) {
+            mReusableImages.remove(image);
+        }
+        return image;
+    }
+
+    static int getByteCount(Bitmap image) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return image.getAllocationByteCount();
+        }
+        else {
+            return image.getByteCount();
+        }
+    }
+
+    private static final class PinnedImage {
+        private Bitmap mImage;
+        private int mPinCount;
+
+        PinnedImage(Bitmap image) {
+            mImage = image;
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/**
+ *
+ * CobaltImageCacheStats
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+/**
+ * Snapshot of the size and statistics of the {@link CobaltImageCache}.
+ */
+public final class CobaltImageCacheStats {
+
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mEvictionCount;
+    private final int mImageCount;
+    private final long mSize;
+    private final long mMaxSize;
+    private final int mPinnedImageCount;
+    private final long mPinnedSize;
+    private final long mDiskHitCount;
+    private final long mDiskMissCount;
+
+    CobaltImageCacheStats(long hitCount, long missCount, long evictionCount, int imageCount, long size, long maxSize,
+                          int pinnedImageCount, long pinnedSize, long diskHitCount, long diskMissCount) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mEvictionCount = evictionCount;
+        mImageCount = imageCount;
+        mSize = size;
+        mMaxSize = maxSize;
+        mPinnedImageCount = pinnedImageCount;
+        mPinnedSize = pinnedSize;
+        mDiskHitCount = diskHitCount;
+        mDiskMissCount = diskMissCount;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the share of getImage calls which found the image in memory, between 0 and 1, or 0 if getImage was never called.
+     */
+    public float getHitRate() {
+        long requestCount = mHitCount + mMissCount;
+        return requestCount > 0 ? (float) mHitCount / requestCount : 0;
+    }
+
+    /**
+     * @return the number of images evicted because the cache was full or trimmed on memory pressure.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of unpinned images.
+     */
+    public int getImageCount() {
+        return mImageCount;
+    }
+
+    /**
+     * @return the size of the unpinned images, in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum size of the unpinned images, in bytes.
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public int getPinnedImageCount() {
+        return mPinnedImageCount;
+    }
+
+    /**
+     * @return the size of the pinned images, in bytes.
+     */
+    public long getPinnedSize() {
+        return mPinnedSize;
+    }
+
+    /**
+     * @return the number of memory misses for which the image was found on disk.
+     */
+    public long getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    /**
+     * @return the number of memory misses for which the image was not found on disk either.
+     */
+    public long getDiskMissCount() {
+        return mDiskMissCount;
+    }
+
+    @Override
+    public String toString() {
+        return "{hits: " + mHitCount
+                + ", misses: " + mMissCount
+                + ", evictions: " + mEvictionCount
+                + ", images: " + mImageCount
+                + ", size: " + mSize + "/" + mMaxSize
+                + ", pinned images: " + mPinnedImageCount
+                + ", pinned size: " + mPinnedSize
+                + ", disk hits: " + mDiskHitCount
+                + ", disk misses: " + mDiskMissCount + "}";
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ * CobaltImageEncoder
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes images to JPEG under a size limit, with as few compressions as possible.
+ *
+ * The quality is binary-searched between {@link #MIN_QUALITY} and 100, the size of the base64 string being computed
+ * from the JPEG size without encoding it. If the image does not fit even at {@link #MIN_QUALITY}, it is downscaled
+ * in proportion to the excess and searched again.
+ */
+final class CobaltImageEncoder {
+
+    private static final String TAG = CobaltImageEncoder.class.getSimpleName();
+
+    /**
+     * Default maximum length of base64 strings: longer strings fail to be sent on some devices.
+     */
+    static final int MAX_BASE64_LENGTH = 2097152;
+
+    // Under this quality, downscaling gives a better result than lowering the quality further
+    private static final int MIN_QUALITY = 60;
+    private static final int MAX_QUALITY = 100;
+    private static final int MAX_DOWNSCALES = 4;
+    // Margin applied to the downscale factor, JPEG size not being exactly proportional to the pixel count
+    private static final double DOWNSCALE_MARGIN = 0.9;
+
+    private CobaltImageEncoder() {
+
+    }
+
+    /*********************************************************
+     * ENCODING
+     *********************************************************/
+
+    /**
+     * Encodes the given image to a base64 JPEG of at most the given length.
+     * @param image: the image to encode
+     * @param maxLength: the maximum length of the base64 string
+     * @return the base64 string, or null if the image could not fit
+     */
+    static String toBase64(Bitmap image, int maxLength) {
+        byte[] jpeg = toJpeg(image, maxBytesForBase64Length(maxLength));
+        return jpeg != null ? Base64.encodeToString(jpeg, Base64.NO_WRAP) : null;
+    }
+
+    /**
+     * Compresses the given image to a JPEG of at most the given size, with the highest quality possible.
+     * @param image: the image to compress
+     * @param maxBytes: the maximum size of the JPEG
+     * @return the JPEG, or null if the image could not fit
+     */
+    static byte[] toJpeg(Bitmap image, long maxBytes) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Bitmap scaledImage = image;
+        int compressionCount = 0;
+
+        try {
+            for (int downscaleCount = 0 ; downscaleCount <= MAX_DOWNSCALES ; downscaleCount++) {
+                // Most images fit at the maximum quality
+                int size = compress(scaledImage, MAX_QUALITY, outputStream);
+                compressionCount++;
+                if (size <= maxBytes) {
+                    return outputStream.toByteArray();
+                }
+
+                byte[] best = null;
+                int minSize = size;
+                int low = MIN_QUALITY;
+                int high = MAX_QUALITY - 1;
+                while (low <= high) {
+                    int quality = (low + high) >>> 1;
+                    size = compress(scaledImage, quality, outputStream);
+                    compressionCount++;
+                    if (size <= maxBytes) {
+                        best = outputStream.toByteArray();
+                        low = quality + 1;
+                    }
+                    else {
+                        minSize = Math.min(minSize, size);
+                        high = quality - 1;
+                    }
+                }
+
+                if (best != null) {
+                    return best;
+                }
+
+                // minSize is the size at MIN_QUALITY, the last quality tried without fitting
+                double factor = Math.sqrt((double) maxBytes / minSize) * DOWNSCALE_MARGIN;
+                int width = Math.max(1, (int) (scaledImage.getWidth() * factor));
+                int height = Math.max(1, (int) (scaledImage.getHeight() * factor));
+
+                Bitmap previousImage = scaledImage;
+                scaledImage = Bitmap.createScaledBitmap(previousImage, width, height, true);
+                if (previousImage != image) {
+                    previousImage.recycle();
+                }
+            }
+
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - toJpeg: unable to fit the image in " + maxBytes + " bytes.");
+            return null;
+        }
+        finally {
+            if (scaledImage != image) {
+                scaledImage.recycle();
+            }
+
+            if (Cobalt.DEBUG) Log.d(Cobalt.TAG, TAG + " - toJpeg: " + compressionCount + " compression(s).");
+        }
+    }
+
+    /**
+     * @return the maximum number of bytes a base64 string without line wrap of the given length can encode,
+     * its length being 4 * ceil(bytes / 3).
+     */
+    static long maxBytesForBase64Length(long length) {
+        return length / 4 * 3;
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    /**
+     * Compresses the given image in the given stream, reset beforehand.
+     * @return the compressed size.
+     */
+    private static int compress(Bitmap image, int quality, ByteArrayOutputStream outputStream) {
+        outputStream.reset();
+        image.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+        return outputStream.size();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ * CobaltImageOptions
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import android.graphics.Bitmap;
+
+/**
+ * Options of the images inserted in the {@link CobaltImageCache}, applied in background before storing them.
+ */
+public final class CobaltImageOptions {
+
+    private final int mMaxDimension;
+    private final Bitmap.Config mConfig;
+
+    /**
+     * @param maxDimension: the maximum width and height of the stored image, which is downsampled keeping its aspect ratio,
+     *                    or 0 to keep the size of the given image
+     * @param config: the config of the stored image, {@link Bitmap.Config#RGB_565} halving the memory of opaque images,
+     *              or null to keep the config of the given image
+     */
+    public CobaltImageOptions(int maxDimension, Bitmap.Config config) {
+        mMaxDimension = Math.max(0, maxDimension);
+        mConfig = config;
+    }
+
+    public int getMaxDimension() {
+        return mMaxDimension;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return the size of the given dimensions once limited to the maximum dimension, as {width, height}.
+     */
+    int[] getTargetSize(int width, int height) {
+        if (mMaxDimension <= 0
+            || Math.max(width, height) <= mMaxDimension) {
+            return new int[] {width, height};
+        }
+
+        float scale = (float) mMaxDimension / Math.max(width, height);
+        return new int[] {Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+}
@@ -59,13 +59,38 @@ public class LocalStorage extends SQLiteOpenHelper {
 	 * Value column of LocalStorage table
 	 */
 	public static final String LOCALSTORAGE_VALUE = "value";
+	/**
+	 * Encoding column of LocalStorage table, telling whether the value is stored in the value column or in chunks
+	 */
+	public static final String LOCALSTORAGE_ENCODING = "encoding";
+	/**
+	 * Name of LocalStorage chunks table, storing large values split in several rows
+	 */
+	public static final String LOCALSTORAGE_CHUNKS_TABLE_NAME = "local_storage_chunks_table";
+	/**
+	 * Index column of LocalStorage chunks table, the key being stored in the LOCALSTORAGE_ID column
+	 */
+	public static final String LOCALSTORAGE_CHUNK_INDEX = "chunk_index";
+	/**
+	 * Data column of LocalStorage chunks table
+	 */
+	public static final String LOCALSTORAGE_CHUNK_DATA = "data";
 	
-	private static final int DATABASE_VERSION = 2;
-	private static final String DATABASE_NAME = "local_storage.db";
+	private static final int DATABASE_VERSION = 3;
+	static final String DATABASE_NAME = "local_storage.db";
 	private static final String CREATE_TABLE = 	"CREATE TABLE " + LOCALSTORAGE_TABLE_NAME + " (" 
 													+ LOCALSTORAGE_ID + " TEXT PRIMARY KEY, "
-													+ LOCALSTORAGE_VALUE + " TEXT NOT NULL" 
+													+ LOCALSTORAGE_VALUE + " TEXT NOT NULL, "
+													+ LOCALSTORAGE_ENCODING + " INTEGER NOT NULL DEFAULT 0"
 												+ ");";
+	private static final String CREATE_CHUNKS_TABLE = "CREATE TABLE " + LOCALSTORAGE_CHUNKS_TABLE_NAME + " ("
+														+ LOCALSTORAGE_ID + " TEXT NOT NULL, "
+														+ LOCALSTORAGE_CHUNK_INDEX + " INTEGER NOT NULL, "
+														+ LOCALSTORAGE_CHUNK_DATA + " BLOB NOT NULL, "
+														+ "PRIMARY KEY (" + LOCALSTORAGE_ID + ", " + LOCALSTORAGE_CHUNK_INDEX + ")"
+													+ ");";
+	private static final String ADD_ENCODING_COLUMN = "ALTER TABLE " + LOCALSTORAGE_TABLE_NAME
+													+ " ADD COLUMN " + LOCALSTORAGE_ENCODING + " INTEGER NOT NULL DEFAULT 0;";
 
     /*************************************
      * MEMBERS
@@ -102,13 +127,24 @@ public class LocalStorage extends SQLiteOpenHelper {
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(CREATE_TABLE);
+		db.execSQL(CREATE_CHUNKS_TABLE);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - onUpgrade: upgrading database from version " + oldVersion + " to " + newVersion + ", All data will be lost.");
-		
-		db.execSQL("DROP TABLE IF EXISTS " + LOCALSTORAGE_TABLE_NAME);
-		onCreate(db);
+		if (oldVersion < 2) {
+			if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - onUpgrade: upgrading database from version " + oldVersion + " to " + newVersion + ", All data will be lost.");
+
+			db.execSQL("DROP TABLE IF EXISTS " + LOCALSTORAGE_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + LOCALSTORAGE_CHUNKS_TABLE_NAME);
+			onCreate(db);
+			return;
+		}
+
+		// Version 3 adds large values encoding, existing values are kept as is
+		if (oldVersion < 3) {
+			db.execSQL(ADD_ENCODING_COLUMN);
+			db.execSQL(CREATE_CHUNKS_TABLE);
+		}
 	}
 }
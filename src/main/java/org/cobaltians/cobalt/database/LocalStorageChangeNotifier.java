@@ -0,0 +1,285 @@
+/**
+ *
+ * LocalStorageChangeNotifier
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Delivers {@link LocalStorageStore} changes to the Web views which subscribed to a key prefix,
+ * as {@link Cobalt#JSEventOnStorageChanged} events.
+ * Changes are coalesced until the next frame, only the last value of each key being delivered.
+ * A Web view is not notified of its own changes.
+ * Subscribers are held weakly, so they do not need to unsubscribe when their Web view is destroyed.
+ */
+final class LocalStorageChangeNotifier {
+
+    private static final String TAG = LocalStorageChangeNotifier.class.getSimpleName();
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final WeakHashMap<LocalStorageJavaScriptInterface, Set<String>> mSubscriptions = new WeakHashMap<>();
+    private HashMap<String, PendingChanges> mPendingChanges = new HashMap<>();
+    private boolean mFrameScheduled;
+
+    private final Runnable mScheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatchPendingChanges();
+        }
+    };
+
+    /*********************************************************
+     * SUBSCRIPTIONS
+     *********************************************************/
+
+    /**
+     * Subscribes the given interface to changes of the keys starting with the given prefix, in its namespace.
+     * @param subscriber: the interface of the Web view
+     * @param prefix: prefix of the keys, null or empty for every key
+     */
+    void subscribe(LocalStorageJavaScriptInterface subscriber, String prefix) {
+        synchronized (mLock) {
+            Set<String> prefixes = mSubscriptions.get(subscriber);
+            if (prefixes == null) {
+                prefixes = new HashSet<>();
+                mSubscriptions.put(subscriber, prefixes);
+            }
+            prefixes.add(prefix != null ? prefix : "");
+        }
+    }
+
+    /**
+     * Unsubscribes the given interface from changes of the keys starting with the given prefix.
+     * @param subscriber: the interface of the Web view
+     * @param prefix: prefix given at subscription, or null to unsubscribe from every prefix
+     */
+    void unsubscribe(LocalStorageJavaScriptInterface subscriber, String prefix) {
+        synchronized (mLock) {
+            Set<String> prefixes = mSubscriptions.get(subscriber);
+            if (prefixes != null) {
+                if (prefix != null) {
+                    prefixes.remove(prefix);
+                }
+                if (prefix == null
+                    || prefixes.isEmpty()) {
+                    mSubscriptions.remove(subscriber);
+                }
+            }
+        }
+    }
+
+    /*********************************************************
+     * CHANGES
+     *********************************************************/
+
+    /**
+     * Records the change of the given key, to be delivered on the next frame.
+     * @param namespace: namespace of the item
+     * @param key: key of the item
+     * @param value: new value of the item, null if removed
+     * @param source: interface which made the change, null if made natively
+     */
+    void onItemChanged(String namespace, String key, String value, LocalStorageJavaScriptInterface source) {
+        synchronized (mLock) {
+            if (mSubscriptions.isEmpty()) {
+                return;
+            }
+
+            getPendingChanges(namespace).mValues.put(key, new Change(value, source));
+            scheduleFrameIfNeeded();
+        }
+    }
+
+    /**
+     * Records the clearing of the given namespace, discarding its pending changes.
+     * @param namespace: namespace cleared
+     */
+    void onNamespaceCleared(String namespace) {
+        synchronized (mLock) {
+            if (mSubscriptions.isEmpty()) {
+                return;
+            }
+
+            PendingChanges pendingChanges = getPendingChanges(namespace);
+            pendingChanges.mCleared = true;
+            pendingChanges.mValues.clear();
+            scheduleFrameIfNeeded();
+        }
+    }
+
+    private PendingChanges getPendingChanges(String namespace) {
+        PendingChanges pendingChanges = mPendingChanges.get(namespace);
+        if (pendingChanges == null) {
+            pendingChanges = new PendingChanges();
+            mPendingChanges.put(namespace, pendingChanges);
+        }
+
+        return pendingChanges;
+    }
+
+    private void scheduleFrameIfNeeded() {
+        if (! mFrameScheduled) {
+            mFrameScheduled = true;
+            // Choreographer must be obtained from the main thread
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mScheduleFrameRunnable.run();
+            }
+            else {
+                mMainHandler.post(mScheduleFrameRunnable);
+            }
+        }
+    }
+
+    /*********************************************************
+     * DISPATCH
+     *********************************************************/
+
+    private void dispatchPendingChanges() {
+        HashMap<String, PendingChanges> pendingChanges;
+        ArrayList<Map.Entry<LocalStorageJavaScriptInterface, Set<String>>> subscriptions;
+        synchronized (mLock) {
+            pendingChanges = mPendingChanges;
+            mPendingChanges = new HashMap<>();
+            mFrameScheduled = false;
+
+            subscriptions = new ArrayList<>(mSubscriptions.size());
+            for (Map.Entry<LocalStorageJavaScriptInterface, Set<String>> subscription : mSubscriptions.entrySet()) {
+                subscriptions.add(new AbstractMap.SimpleImmutableEntry<LocalStorageJavaScriptInterface, Set<String>>(subscription.getKey(),
+                                                                                                                      new HashSet<>(subscription.getValue())));
+            }
+        }
+
+        for (Map.Entry<LocalStorageJavaScriptInterface, Set<String>> subscription : subscriptions) {
+            LocalStorageJavaScriptInterface subscriber = subscription.getKey();
+            PendingChanges namespaceChanges = pendingChanges.get(subscriber.getNamespace());
+            if (namespaceChanges != null) {
+                JSONObject data = buildEventData(subscriber, subscription.getValue(), namespaceChanges);
+                if (data != null) {
+                    subscriber.onStorageChanged(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the event data for the given subscriber, or null if it is not concerned by the changes.
+     */
+    private static JSONObject buildEventData(LocalStorageJavaScriptInterface subscriber, Set<String> prefixes, PendingChanges pendingChanges) {
+        try {
+            JSONArray changes = new JSONArray();
+            for (Map.Entry<String, Change> change : pendingChanges.mValues.entrySet()) {
+                String key = change.getKey();
+                if (change.getValue().mSource != subscriber
+                    && matches(prefixes, key)) {
+                    JSONObject jsonChange = new JSONObject();
+                    jsonChange.put(Cobalt.kJSStorageKey, key);
+                    jsonChange.put(Cobalt.kJSStorageValue, change.getValue().mValue != null ? change.getValue().mValue : JSONObject.NULL);
+                    changes.put(jsonChange);
+                }
+            }
+
+            if (changes.length() == 0
+                && ! pendingChanges.mCleared) {
+                return null;
+            }
+
+            JSONObject data = new JSONObject();
+            data.put(Cobalt.kJSStorageCleared, pendingChanges.mCleared);
+            data.put(Cobalt.kJSStorageChanges, changes);
+            return data;
+        }
+        catch (JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - buildEventData: JSONException");
+            exception.printStackTrace();
+            return null;
+        }
+    }
+
+    private static boolean matches(Set<String> prefixes, String key) {
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /*********************************************************
+     * INNER CLASSES
+     *********************************************************/
+
+    private static final class PendingChanges {
+        // Last change of each key, in the order keys were first changed
+        private final LinkedHashMap<String, Change> mValues = new LinkedHashMap<>();
+        private boolean mCleared;
+    }
+
+    private static final class Change {
+        private final String mValue;
+        private final LocalStorageJavaScriptInterface mSource;
+
+        Change(String value, LocalStorageJavaScriptInterface source) {
+            mValue = value;
+            mSource = source;
+        }
+    }
+}
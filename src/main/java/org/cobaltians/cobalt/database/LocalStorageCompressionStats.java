@@ -0,0 +1,119 @@
+/**
+ *
+ * LocalStorageCompressionStats
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+/**
+ * Snapshot of the statistics of the large values handled by the {@link SQLiteLocalStorageEngine}, since it was created.
+ * Large values are values of at least {@link SQLiteLocalStorageEngine#LARGE_VALUE_THRESHOLD} chars, stored in chunks.
+ */
+public final class LocalStorageCompressionStats {
+
+    private final long mLargeValueCount;
+    private final long mCompressedValueCount;
+    private final long mUncompressedBytes;
+    private final long mStoredBytes;
+    private final long mLoadedValueCount;
+    private final long mDecodedValueCount;
+
+    LocalStorageCompressionStats(long largeValueCount, long compressedValueCount, long uncompressedBytes, long storedBytes,
+                                 long loadedValueCount, long decodedValueCount) {
+        mLargeValueCount = largeValueCount;
+        mCompressedValueCount = compressedValueCount;
+        mUncompressedBytes = uncompressedBytes;
+        mStoredBytes = storedBytes;
+        mLoadedValueCount = loadedValueCount;
+        mDecodedValueCount = decodedValueCount;
+    }
+
+    /**
+     * @return the number of large values written.
+     */
+    public long getLargeValueCount() {
+        return mLargeValueCount;
+    }
+
+    /**
+     * @return the number of large values written gzipped, compression being skipped when it saves less than 10%.
+     */
+    public long getCompressedValueCount() {
+        return mCompressedValueCount;
+    }
+
+    /**
+     * @return the share of large values written gzipped, between 0 and 1, or 0 if no large value was written.
+     */
+    public float getCompressionHitRate() {
+        return mLargeValueCount > 0 ? (float) mCompressedValueCount / mLargeValueCount : 0;
+    }
+
+    /**
+     * @return the size of the large values written, encoded in UTF-8, in bytes.
+     */
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    /**
+     * @return the size of the chunks written for large values, in bytes.
+     */
+    public long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * @return the stored size of the large values written divided by their UTF-8 size, or 1 if no large value was written.
+     */
+    public float getCompressionRatio() {
+        return mUncompressedBytes > 0 ? (float) mStoredBytes / mUncompressedBytes : 1;
+    }
+
+    /**
+     * @return the number of values loaded.
+     */
+    public long getLoadedValueCount() {
+        return mLoadedValueCount;
+    }
+
+    /**
+     * @return the number of values loaded from chunks.
+     */
+    public long getDecodedValueCount() {
+        return mDecodedValueCount;
+    }
+
+    @Override
+    public String toString() {
+        return "{large values: " + mLargeValueCount
+                + ", compression hit rate: " + getCompressionHitRate()
+                + ", compression ratio: " + getCompressionRatio()
+                + ", loaded values: " + mLoadedValueCount
+                + ", decoded values: " + mDecodedValueCount + "}";
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ * LocalStorageEngine
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence backend of the {@link LocalStorageStore}.
+ * The store keeps every item in memory, so an engine only loads all items once and then persists mutations.
+ * Calls are serialized by the store.
+ */
+public interface LocalStorageEngine {
+
+    /**
+     * Loads every persisted item.
+     * @return a mutable map of the persisted items by key.
+     */
+    Map<String, String> loadAll();
+
+    /**
+     * Persists the specified mutations, in order, as a single transaction.
+     * @param mutations the mutations to persist.
+     */
+    void write(List<LocalStorageMutation> mutations);
+
+    /**
+     * Releases the resources held by the engine. No other method is called afterwards.
+     */
+    void close();
+}
@@ -29,15 +29,29 @@
 
 package org.cobaltians.cobalt.database;
 
-import android.content.ContentValues;
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 import android.webkit.JavascriptInterface;
 import junit.framework.Assert;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * Local storage substitution for Web views
+ * Items are served from the memory of the {@link LocalStorageStore}, which persists changes through a single database connection.
  * @author Diane
  */
 public class LocalStorageJavaScriptInterface {
@@ -45,12 +59,37 @@ public class LocalStorageJavaScriptInterface {
     private static final String TAG = LocalStorageJavaScriptInterface.class.getSimpleName();
 
     private final Context mContext;
-    private final LocalStorage mLocalStorage;
+    private final LocalStorageStore mStore;
+    private final String mNamespace;
+    private final WeakReference<CobaltFragment> mFragment;
 
     public LocalStorageJavaScriptInterface(Context context) {
+        this(context, LocalStorageStore.DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * @param context: context used to get the store
+     * @param namespace: namespace of the items exposed to the Web view, null for the default namespace
+     */
+    public LocalStorageJavaScriptInterface(Context context, String namespace) {
+        this(context, namespace, null);
+    }
+
+    /**
+     * @param context: context used to get the store
+     * @param namespace: namespace of the items exposed to the Web view, null for the default namespace
+     * @param fragment: fragment of the Web view, notified of the changes it subscribes to. May be null to disable notifications.
+     */
+    public LocalStorageJavaScriptInterface(Context context, String namespace, CobaltFragment fragment) {
         Assert.assertNotNull(TAG + " - getInstance: context could not be null", context);
         mContext = context;
-        mLocalStorage = LocalStorage.getInstance(mContext);
+        mStore = LocalStorageStore.getInstance(mContext);
+        mNamespace = namespace != null ? namespace : LocalStorageStore.DEFAULT_NAMESPACE;
+        mFragment = new WeakReference<>(fragment);
+    }
+
+    String getNamespace() {
+        return mNamespace;
     }
 
     /**
@@ -60,22 +99,7 @@ public class LocalStorageJavaScriptInterface {
      */
     @JavascriptInterface
     public String getItem(String key) {
-        String value = null;
-
-        if (key != null) {
-            SQLiteDatabase database = mLocalStorage.getReadableDatabase();
-            Cursor cursor = database.query( LocalStorage.LOCALSTORAGE_TABLE_NAME,
-                                            null,
-                                            LocalStorage.LOCALSTORAGE_ID + " = ?",  new String [] {key},
-                                            null, null, null);
-            if (cursor.moveToFirst()) {
-                value = cursor.getString(1);
-            }
-            cursor.close();
-            database.close();
-        }
-
-        return value;
+        return mStore.getItem(mNamespace, key);
     }
 
     /**
@@ -85,26 +109,7 @@ public class LocalStorageJavaScriptInterface {
      */
     @JavascriptInterface
     public void setItem(String key, String value) {
-        if (key != null
-            && value != null) {
-            SQLiteDatabase database = mLocalStorage.getWritableDatabase();
-
-            ContentValues values = new ContentValues();
-            values.put(LocalStorage.LOCALSTORAGE_ID, key);
-            values.put(LocalStorage.LOCALSTORAGE_VALUE, value);
-
-            if (getItem(key) != null) {
-                database.update(	LocalStorage.LOCALSTORAGE_TABLE_NAME,
-                                    values,
-                                    LocalStorage.LOCALSTORAGE_ID + " = " + key,
-                                    null);
-            }
-            else {
-                database.insert(	LocalStorage.LOCALSTORAGE_TABLE_NAME, null,
-                                    values);
-            }
-            database.close();
-        }
+        mStore.setItems(mNamespace, Collections.singletonMap(key, value), this);
     }
 
     /**
@@ -113,22 +118,152 @@ public class LocalStorageJavaScriptInterface {
      */
     @JavascriptInterface
     public void removeItem(String key) {
-        if (key != null) {
-            SQLiteDatabase database = mLocalStorage.getWritableDatabase();
-            database.delete(	LocalStorage.LOCALSTORAGE_TABLE_NAME,
-                                LocalStorage.LOCALSTORAGE_ID + " = " + key,
-                                null);
-            database.close();
-        }
+        mStore.removeItems(mNamespace, Collections.singletonList(key), this);
     }
 
     /**
-     * Clears local storage.
+     * Clears the items of the namespace of the Web view.
      */
     @JavascriptInterface
     public void clear() {
-        SQLiteDatabase database = mLocalStorage.getWritableDatabase();
-        database.delete(LocalStorage.LOCALSTORAGE_TABLE_NAME, null, null);
-        database.close();
+        mStore.clear(mNamespace, this);
+    }
+
+    /**
+     * Gets items for the given keys in a single call
+     * @param jsonKeys: JSON array of the keys to look for
+     * @return JSON object containing the value of each key, null if absent, or null if jsonKeys is not a JSON array of strings
+     */
+    @JavascriptInterface
+    public String getItems(String jsonKeys) {
+        List<String> keys = parseKeys(jsonKeys);
+        if (keys == null) {
+            return null;
+        }
+
+        JSONObject items = new JSONObject();
+        try {
+            for (Map.Entry<String, String> item : mStore.getItems(mNamespace, keys).entrySet()) {
+                items.put(item.getKey(), item.getValue() != null ? item.getValue() : JSONObject.NULL);
+            }
+        }
+        catch (JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - getItems: JSONException");
+            exception.printStackTrace();
+            return null;
+        }
+
+        return items.toString();
+    }
+
+    /**
+     * Sets the given items in a single transaction.
+     * @param jsonMap: JSON object containing the value of each key to set. Values must be strings.
+     */
+    @JavascriptInterface
+    public void setItems(String jsonMap) {
+        if (jsonMap == null) {
+            return;
+        }
+
+        try {
+            JSONObject items = new JSONObject(jsonMap);
+            HashMap<String, String> values = new HashMap<>(items.length());
+
+            Iterator<String> keysIterator = items.keys();
+            while (keysIterator.hasNext()) {
+                String key = keysIterator.next();
+                if (! items.isNull(key)) {
+                    values.put(key, items.getString(key));
+                }
+            }
+
+            mStore.setItems(mNamespace, values, this);
+        }
+        catch (JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setItems: unable to parse " + jsonMap + " as a JSON object.");
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes items corresponding to the given keys in a single transaction.
+     * @param jsonKeys: JSON array of the keys to remove
+     */
+    @JavascriptInterface
+    public void removeItems(String jsonKeys) {
+        List<String> keys = parseKeys(jsonKeys);
+        if (keys != null) {
+            mStore.removeItems(mNamespace, keys, this);
+        }
+    }
+
+    /**
+     * Returns the keys starting with the given prefix.
+     * @param prefix: prefix of the keys to return, null or empty to return every key
+     * @return JSON array of the matching keys
+     */
+    @JavascriptInterface
+    public String keys(String prefix) {
+        return new JSONArray(mStore.keys(mNamespace, prefix)).toString();
+    }
+
+    /**
+     * Subscribes the Web view to changes made by other Web views or natively to the keys starting with the given prefix.
+     * Changes are delivered on the next frame as an onStorageChanged event, whose data contains
+     * a changes array of {key, value} objects, value being null for removed items,
+     * and a cleared field, true if the whole storage was cleared before these changes.
+     * @param prefix: prefix of the keys, null or empty for every key
+     */
+    @JavascriptInterface
+    public void subscribe(String prefix) {
+        if (mFragment.get() != null) {
+            mStore.getChangeNotifier().subscribe(this, prefix);
+        }
+        else if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - subscribe: no fragment to notify, subscription ignored.");
+    }
+
+    /**
+     * Unsubscribes the Web view from changes of the keys starting with the given prefix.
+     * @param prefix: prefix given to {@link #subscribe(String)}, or null to unsubscribe from every prefix
+     */
+    @JavascriptInterface
+    public void unsubscribe(String prefix) {
+        mStore.getChangeNotifier().unsubscribe(this, prefix);
+    }
+
+    /**
+     * Delivers the given changes to the Web view. Called on the main thread.
+     */
+    void onStorageChanged(JSONObject data) {
+        CobaltFragment fragment = mFragment.get();
+        if (fragment != null) {
+            fragment.sendEvent(Cobalt.JSEventOnStorageChanged, data, null);
+        }
+        else {
+            mStore.getChangeNotifier().unsubscribe(this, null);
+        }
+    }
+
+    private List<String> parseKeys(String jsonKeys) {
+        if (jsonKeys == null) {
+            return null;
+        }
+
+        try {
+            JSONArray keysArray = new JSONArray(jsonKeys);
+            int keysCount = keysArray.length();
+            ArrayList<String> keys = new ArrayList<>(keysCount);
+            for (int i = 0 ; i < keysCount ; i++) {
+                keys.add(keysArray.getString(i));
+            }
+
+            return keys;
+        }
+        catch (JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - parseKeys: unable to parse " + jsonKeys + " as a JSON array of strings.");
+            exception.printStackTrace();
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
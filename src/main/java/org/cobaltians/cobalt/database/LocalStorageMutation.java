@@ -0,0 +1,92 @@
+/**
+ *
+ * LocalStorageMutation
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+/**
+ * Change applied by a {@link LocalStorageEngine} to its persisted items.
+ */
+public final class LocalStorageMutation {
+
+    public static final int TYPE_PUT = 0;
+    public static final int TYPE_REMOVE = 1;
+    public static final int TYPE_CLEAR = 2;
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final int mType;
+    private final String mKey;
+    private final String mValue;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    private LocalStorageMutation(int type, String key, String value) {
+        mType = type;
+        mKey = key;
+        mValue = value;
+    }
+
+    public static LocalStorageMutation put(String key, String value) {
+        return new LocalStorageMutation(TYPE_PUT, key, value);
+    }
+
+    public static LocalStorageMutation remove(String key) {
+        return new LocalStorageMutation(TYPE_REMOVE, key, null);
+    }
+
+    public static LocalStorageMutation clear() {
+        return new LocalStorageMutation(TYPE_CLEAR, null, null);
+    }
+
+    /************************************
+     * GETTERS
+     ************************************/
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return the key to put or remove, null for {@link #TYPE_CLEAR}.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return the value to put, null for {@link #TYPE_REMOVE} and {@link #TYPE_CLEAR}.
+     */
+    public String getValue() {
+        return mValue;
+    }
+}
@@ -0,0 +1,872 @@
+/**
+ *
+ * LocalStorageStore
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import junit.framework.Assert;
+
+/**
+ * Key-value store backing the localStorage substitution of the Web views.
+ * Every item is kept in memory: reads never hit the disk, and mutations are persisted by a {@link LocalStorageEngine}.
+ * The engine is opened and the items are loaded in background as soon as the store is created, the first access waiting for them.
+ * May be used from any thread.
+ *
+ * By default, each mutation is persisted synchronously in its own transaction (write-through).
+ * In write-behind mode, enabled with "localStorage": {"writeBehind": true} in cobalt.conf, mutations are applied to memory at once,
+ * so they are immediately visible to every Web view, and persisted by a background writer in batched transactions,
+ * every flushInterval milliseconds or as soon as flushBatchSize mutations are pending, whichever comes first.
+ * Pending mutations are also flushed when the application goes to background.
+ *
+ * Items are partitioned in namespaces, the default namespace being shared by every Web view unless its controller declares
+ * a localStorageNamespace in cobalt.conf. Each namespace may have a quota, in bytes, counting keys and values as UTF-16,
+ * configured with "localStorage": {"namespaces": {"name": {"quota": bytes}}, "defaultQuota": bytes} or {@link #setQuota(String, long)}.
+ * When a write makes a namespace exceed its quota, its least recently used items are evicted until it is below 90% of it.
+ * Access times are tracked in memory only, so items loaded at startup are considered older than any item accessed since.
+ *
+ * Web views may subscribe to changes of a key prefix in their namespace, through {@link LocalStorageJavaScriptInterface#subscribe(String)}.
+ *
+ * Durability: in write-behind mode, mutations acknowledged to the Web may be lost if the process is killed before the next flush,
+ * i.e. at most the last flushInterval milliseconds or flushBatchSize mutations. Use {@link #flush()} where this is not acceptable.
+ */
+public final class LocalStorageStore {
+
+    private static final String TAG = LocalStorageStore.class.getSimpleName();
+
+    private static final long FLUSH_INTERVAL_DEFAULT_VALUE = 500;
+    private static final int FLUSH_BATCH_SIZE_DEFAULT_VALUE = 100;
+
+    /**
+     * Namespace shared by every Web view unless its controller declares another one.
+     */
+    public static final String DEFAULT_NAMESPACE = "";
+    /**
+     * Separates the namespace from the key in persisted keys.
+     * Namespace names and keys of the default namespace must not contain it, they would be read back in another namespace.
+     */
+    private static final char NAMESPACE_SEPARATOR = '\u001F';
+    private static final String IMPORT_FILE_SUFFIX = ".import";
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private static LocalStorageStore sInstance;
+
+    private final Context mContext;
+    // Created with the items loaded. Guarded by the load lock until loaded
+    private volatile LocalStorageEngine mEngine;
+    private final Object mLoadLock = new Object();
+    // Serializes mutations so that they are persisted in the order they are applied to memory
+    private final Object mMutationLock = new Object();
+    private final JSONObject mConfiguration;
+    private final ConcurrentHashMap<String, Namespace> mNamespaces = new ConcurrentHashMap<>();
+    private final AtomicLong mAccessClock = new AtomicLong();
+    private volatile boolean mLoaded;
+    private final LocalStorageChangeNotifier mChangeNotifier = new LocalStorageChangeNotifier();
+
+    // Write-behind
+    private final boolean mWriteBehind;
+    private final long mFlushInterval;
+    private final int mFlushBatchSize;
+    private final Handler mWriterHandler;
+    private final Object mPendingLock = new Object();
+    private ArrayList<LocalStorageMutation> mPendingMutations = new ArrayList<>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingMutations();
+        }
+    };
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    private LocalStorageStore(Context context, JSONObject configuration) {
+        mContext = context;
+        mConfiguration = configuration;
+
+        mWriteBehind = configuration.optBoolean(Cobalt.kLocalStorageWriteBehind, false);
+        mFlushInterval = Math.max(0, configuration.optLong(Cobalt.kLocalStorageFlushInterval, FLUSH_INTERVAL_DEFAULT_VALUE));
+        mFlushBatchSize = Math.max(1, configuration.optInt(Cobalt.kLocalStorageFlushBatchSize, FLUSH_BATCH_SIZE_DEFAULT_VALUE));
+
+        if (mWriteBehind) {
+            HandlerThread writerThread = new HandlerThread("CobaltLocalStorageWriter", Process.THREAD_PRIORITY_BACKGROUND);
+            writerThread.start();
+            mWriterHandler = new Handler(writerThread.getLooper());
+        }
+        else {
+            mWriterHandler = null;
+        }
+
+        // Opening the engine may import the SQLite database, which must not block the first screen
+        Thread loadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loadIfNeeded();
+            }
+        }, "CobaltLocalStorageLoader");
+        loadThread.start();
+    }
+
+    /**
+     * Returns the instance of LocalStorageStore
+     * @param context: context used to create the engine
+     * @return the instance of LocalStorageStore of the application.
+     */
+    public static synchronized LocalStorageStore getInstance(Context context) {
+        if (sInstance == null) {
+            Assert.assertNotNull(TAG + " - getInstance: context could not be null", context);
+            Context applicationContext = context.getApplicationContext();
+            JSONObject configuration = Cobalt.getInstance(applicationContext).getLocalStorageConfiguration();
+            sInstance = new LocalStorageStore(applicationContext, configuration);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Creates the engine selected by the engine field of the localStorage configuration, "sqlite" by default or "log".
+     * When the log engine is selected for the first time, the items of the SQLite database are imported then the database is deleted.
+     * If the import fails, the SQLite engine is used until the next start, which tries again.
+     */
+    private static LocalStorageEngine createEngine(Context context, JSONObject configuration) {
+        String engine = configuration.optString(Cobalt.kLocalStorageEngine, Cobalt.LocalStorageEngineSQLite);
+        if (Cobalt.LocalStorageEngineLog.equals(engine)) {
+            File logFile = new File(context.getFilesDir(), LogLocalStorageEngine.FILE_NAME);
+            if (! logFile.exists()
+                && context.getDatabasePath(LocalStorage.DATABASE_NAME).exists()
+                && ! importDatabase(context, logFile)) {
+                return new SQLiteLocalStorageEngine(context);
+            }
+
+            return new LogLocalStorageEngine(logFile);
+        }
+        else if (! Cobalt.LocalStorageEngineSQLite.equals(engine)) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - createEngine: unknown engine " + engine + ", using " + Cobalt.LocalStorageEngineSQLite + ".");
+        }
+
+        return new SQLiteLocalStorageEngine(context);
+    }
+
+    /**
+     * Imports the items of the SQLite database into a new log, which becomes the log file once every item is verified persisted,
+     * then deletes the database.
+     * @return true if the items were imported, false if the database is kept and no log file was created
+     */
+    private static boolean importDatabase(Context context, File logFile) {
+        File importFile = new File(logFile.getPath() + IMPORT_FILE_SUFFIX);
+        if (importFile.exists()
+            && ! importFile.delete()) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - importDatabase: unable to delete interrupted import " + importFile.getPath() + ".");
+            return false;
+        }
+
+        Map<String, String> items;
+        long itemCount;
+        SQLiteLocalStorageEngine sqliteEngine = new SQLiteLocalStorageEngine(context);
+        try {
+            items = sqliteEngine.loadAll();
+            itemCount = sqliteEngine.getItemCount();
+        }
+        catch (SQLException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - importDatabase: unable to read the SQLite database.");
+            exception.printStackTrace();
+            return false;
+        }
+        finally {
+            sqliteEngine.close();
+        }
+
+        if (items.size() != itemCount) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - importDatabase: only " + items.size() + " of " + itemCount + " item(s) could be read, keeping the SQLite database.");
+            return false;
+        }
+
+        LogLocalStorageEngine importEngine = new LogLocalStorageEngine(importFile);
+        importEngine.loadAll();
+        boolean imported = importEngine.importItems(items);
+        importEngine.close();
+
+        if (! imported
+            || ! importFile.renameTo(logFile)) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - importDatabase: unable to write " + items.size() + " item(s) to the log, keeping the SQLite database.");
+            importFile.delete();
+            return false;
+        }
+
+        context.deleteDatabase(LocalStorage.DATABASE_NAME);
+        if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - importDatabase: imported " + items.size() + " item(s) from the SQLite database.");
+        return true;
+    }
+
+    /*********************************************************
+     * ITEMS
+     *********************************************************/
+
+    /**
+     * Gets item for the given key in the default namespace
+     * @param key: key to look for
+     * @return item corresponding to the given key, or null if absent
+     */
+    public String getItem(String key) {
+        return getItem(DEFAULT_NAMESPACE, key);
+    }
+
+    /**
+     * Gets item for the given key
+     * @param namespace: namespace of the item
+     * @param key: key to look for
+     * @return item corresponding to the given key, or null if absent
+     */
+    public String getItem(String namespace, String key) {
+        if (key == null) {
+            return null;
+        }
+
+        Namespace items = getNamespace(namespace, false);
+        if (items == null) {
+            return null;
+        }
+
+        Entry entry = items.mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.mLastAccess = mAccessClock.incrementAndGet();
+        return entry.mValue;
+    }
+
+    /**
+     * Sets value for the given key in the default namespace.
+     * @param key: key of the item, ignored if it contains the U+001F unit separator
+     * @param value: value of the item
+     */
+    public void setItem(String key, String value) {
+        setItem(DEFAULT_NAMESPACE, key, value);
+    }
+
+    /**
+     * Sets value for the given key.
+     * @param namespace: namespace of the item
+     * @param key: key of the item
+     * @param value: value of the item
+     */
+    public void setItem(String namespace, String key, String value) {
+        if (key == null
+            || value == null) {
+            return;
+        }
+
+        setItems(namespace, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Removes item corresponding to the given key in the default namespace
+     * @param key: key of the item
+     */
+    public void removeItem(String key) {
+        removeItem(DEFAULT_NAMESPACE, key);
+    }
+
+    /**
+     * Removes item corresponding to the given key
+     * @param namespace: namespace of the item
+     * @param key: key of the item
+     */
+    public void removeItem(String namespace, String key) {
+        if (key == null) {
+            return;
+        }
+
+        removeItems(namespace, Collections.singletonList(key));
+    }
+
+    /**
+     * Removes every item of the default namespace.
+     */
+    public void clear() {
+        clear(DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * Removes every item of the given namespace.
+     * @param namespace: namespace to clear
+     */
+    public void clear(String namespace) {
+        clear(namespace, null);
+    }
+
+    void clear(String namespace, LocalStorageJavaScriptInterface source) {
+        Namespace items = getNamespace(namespace, false);
+        if (items != null) {
+            removeItems(namespace, new ArrayList<>(items.mEntries.keySet()), source);
+        }
+    }
+
+    /**
+     * Removes every item of every namespace.
+     */
+    public void clearAll() {
+        loadIfNeeded();
+        synchronized (mMutationLock) {
+            for (Namespace items : mNamespaces.values()) {
+                items.mEntries.clear();
+                items.mSize = 0;
+                mChangeNotifier.onNamespaceCleared(items.mName);
+            }
+            persist(Collections.singletonList(LocalStorageMutation.clear()));
+        }
+    }
+
+    /**
+     * Gets items for the given keys in the default namespace
+     * @param keys: keys to look for
+     * @return a map containing an entry for each key, whose value is null if absent
+     */
+    public Map<String, String> getItems(Collection<String> keys) {
+        return getItems(DEFAULT_NAMESPACE, keys);
+    }
+
+    /**
+     * Gets items for the given keys
+     * @param namespace: namespace of the items
+     * @param keys: keys to look for
+     * @return a map containing an entry for each key, whose value is null if absent
+     */
+    public Map<String, String> getItems(String namespace, Collection<String> keys) {
+        HashMap<String, String> result = new HashMap<>(keys.size());
+        for (String key : keys) {
+            if (key != null) {
+                result.put(key, getItem(namespace, key));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the given items in the default namespace in a single transaction.
+     * @param values: items by key, null keys and values and keys containing the U+001F unit separator are ignored
+     */
+    public void setItems(Map<String, String> values) {
+        setItems(DEFAULT_NAMESPACE, values);
+    }
+
+    /**
+     * Sets the given items in a single transaction.
+     * If the namespace exceeds its quota afterwards, its least recently used items are evicted in the same transaction.
+     * @param namespace: namespace of the items, ignored if its name contains the U+001F unit separator
+     * @param values: items by key, null keys and values are ignored, as well as keys containing the U+001F unit separator in the default namespace
+     */
+    public void setItems(String namespace, Map<String, String> values) {
+        setItems(namespace, values, null);
+    }
+
+    void setItems(String namespace, Map<String, String> values, LocalStorageJavaScriptInterface source) {
+        if (namespace != null
+            && namespace.indexOf(NAMESPACE_SEPARATOR) != -1) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setItems: namespace " + namespace + " contains the namespace separator, items ignored.");
+            return;
+        }
+
+        ArrayList<LocalStorageMutation> mutations = new ArrayList<>(values.size());
+
+        Namespace items = getNamespace(namespace, true);
+        synchronized (mMutationLock) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                String key = value.getKey();
+                if (key != null
+                    && items.mName.length() == 0
+                    && key.indexOf(NAMESPACE_SEPARATOR) != -1) {
+                    if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - setItems: key " + key + " contains the namespace separator, item ignored.");
+                }
+                else if (key != null
+                         && value.getValue() != null) {
+                    Entry previousEntry = items.mEntries.put(key, new Entry(value.getValue(), mAccessClock.incrementAndGet()));
+                    items.mSize += sizeOf(key, value.getValue()) - (previousEntry != null ? sizeOf(key, previousEntry.mValue) : 0);
+                    mutations.add(LocalStorageMutation.put(toStorageKey(items.mName, key), value.getValue()));
+                    mChangeNotifier.onItemChanged(items.mName, key, value.getValue(), source);
+                }
+            }
+
+            evictIfNeeded(items, mutations);
+
+            if (! mutations.isEmpty()) {
+                persist(mutations);
+            }
+        }
+    }
+
+    /**
+     * Removes items of the default namespace corresponding to the given keys in a single transaction.
+     * @param keys: keys of the items
+     */
+    public void removeItems(Collection<String> keys) {
+        removeItems(DEFAULT_NAMESPACE, keys);
+    }
+
+    /**
+     * Removes items corresponding to the given keys in a single transaction.
+     * @param namespace: namespace of the items
+     * @param keys: keys of the items
+     */
+    public void removeItems(String namespace, Collection<String> keys) {
+        removeItems(namespace, keys, null);
+    }
+
+    void removeItems(String namespace, Collection<String> keys, LocalStorageJavaScriptInterface source) {
+        Namespace items = getNamespace(namespace, false);
+        if (items == null) {
+            return;
+        }
+
+        ArrayList<LocalStorageMutation> mutations = new ArrayList<>(keys.size());
+        synchronized (mMutationLock) {
+            for (String key : keys) {
+                if (key != null) {
+                    Entry entry = items.mEntries.remove(key);
+                    if (entry != null) {
+                        items.mSize -= sizeOf(key, entry.mValue);
+                        mutations.add(LocalStorageMutation.remove(toStorageKey(items.mName, key)));
+                        mChangeNotifier.onItemChanged(items.mName, key, null, source);
+                    }
+                }
+            }
+
+            if (! mutations.isEmpty()) {
+                persist(mutations);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the default namespace starting with the given prefix
+     * @param prefix: prefix of the keys to return, null or empty to return every key
+     * @return the matching keys, in no particular order
+     */
+    public List<String> keys(String prefix) {
+        return keys(DEFAULT_NAMESPACE, prefix);
+    }
+
+    /**
+     * Returns the keys starting with the given prefix
+     * @param namespace: namespace of the keys
+     * @param prefix: prefix of the keys to return, null or empty to return every key
+     * @return the matching keys, in no particular order
+     */
+    public List<String> keys(String namespace, String prefix) {
+        ArrayList<String> keys = new ArrayList<>();
+
+        Namespace items = getNamespace(namespace, false);
+        if (items != null) {
+            for (String key : items.mEntries.keySet()) {
+                if (prefix == null
+                    || key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the number of items of every namespace.
+     */
+    public int size() {
+        loadIfNeeded();
+
+        int size = 0;
+        for (Namespace items : mNamespaces.values()) {
+            size += items.mEntries.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the statistics of the large values compressed and chunked by the engine, or null if the engine does not chunk values.
+     */
+    public LocalStorageCompressionStats getCompressionStats() {
+        loadIfNeeded();
+        if (mEngine instanceof SQLiteLocalStorageEngine) {
+            return ((SQLiteLocalStorageEngine) mEngine).getCompressionStats();
+        }
+
+        return null;
+    }
+
+    /*********************************************************
+     * CHANGE NOTIFICATIONS
+     *********************************************************/
+
+    LocalStorageChangeNotifier getChangeNotifier() {
+        return mChangeNotifier;
+    }
+
+    /*********************************************************
+     * QUOTAS
+     *********************************************************/
+
+    /**
+     * Sets the quota of the given namespace, overriding cobalt.conf.
+     * Least recently used items are evicted on the next write if the namespace exceeds it.
+     * @param namespace: the namespace
+     * @param quota: maximum size in bytes, counting keys and values as UTF-16, or 0 for no quota
+     */
+    public void setQuota(String namespace, long quota) {
+        Namespace items = getNamespace(namespace, true);
+        synchronized (mMutationLock) {
+            items.mQuota = Math.max(0, quota);
+        }
+    }
+
+    /**
+     * Returns the usage of every namespace containing items or having a quota.
+     * @return the usage of each namespace by name, the default namespace being the empty string.
+     */
+    public Map<String, LocalStorageUsage> getUsage() {
+        loadIfNeeded();
+
+        HashMap<String, LocalStorageUsage> usage = new HashMap<>();
+        synchronized (mMutationLock) {
+            for (Namespace items : mNamespaces.values()) {
+                if (! items.mEntries.isEmpty()
+                    || items.mQuota > 0) {
+                    usage.put(items.mName, new LocalStorageUsage(items.mName, items.mEntries.size(), items.mSize, items.mQuota, items.mEvictionCount));
+                }
+            }
+        }
+
+        return usage;
+    }
+
+    /**
+     * Evicts the least recently used items of the given namespace until it is below 90% of its quota.
+     * Must be called holding the mutation lock.
+     */
+    private void evictIfNeeded(Namespace items, List<LocalStorageMutation> mutations) {
+        if (items.mQuota <= 0
+            || items.mSize <= items.mQuota) {
+            return;
+        }
+
+        // Evicting below the quota avoids sorting the namespace on every following write
+        long targetSize = items.mQuota - items.mQuota / 10;
+
+        ArrayList<Map.Entry<String, Entry>> entries = new ArrayList<>(items.mEntries.entrySet());
+        Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+
+        for (Map.Entry<String, Entry> entry : entries) {
+            if (items.mSize <= targetSize) {
+                break;
+            }
+
+            String key = entry.getKey();
+            if (items.mEntries.remove(key) != null) {
+                items.mSize -= sizeOf(key, entry.getValue().mValue);
+                items.mEvictionCount++;
+                mutations.add(LocalStorageMutation.remove(toStorageKey(items.mName, key)));
+                // Evictions are notified to every subscriber, including the Web view which caused them
+                mChangeNotifier.onItemChanged(items.mName, key, null, null);
+            }
+        }
+
+        if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - evictIfNeeded: namespace \"" + items.mName + "\" now uses " + items.mSize + " of " + items.mQuota + " bytes.");
+    }
+
+    private static long sizeOf(String key, String value) {
+        return 2L * (key.length() + value.length());
+    }
+
+    private static final Comparator<Map.Entry<String, Entry>> LEAST_RECENTLY_USED_FIRST = new Comparator<Map.Entry<String, Entry>>() {
+        @Override
+        public int compare(Map.Entry<String, Entry> entry1, Map.Entry<String, Entry> entry2) {
+            long lastAccess1 = entry1.getValue().mLastAccess;
+            long lastAccess2 = entry2.getValue().mLastAccess;
+            return lastAccess1 < lastAccess2 ? -1 : (lastAccess1 == lastAccess2 ? 0 : 1);
+        }
+    };
+
+    /*********************************************************
+     * PERSISTENCE
+     *********************************************************/
+
+    /**
+     * @return true if mutations are persisted in background in batched transactions.
+     */
+    public boolean isWriteBehind() {
+        return mWriteBehind;
+    }
+
+    /**
+     * @return the number of mutations applied to memory but not persisted yet. Always 0 in write-through mode.
+     */
+    public int getPendingWriteCount() {
+        synchronized (mPendingLock) {
+            return mPendingMutations.size();
+        }
+    }
+
+    /**
+     * Schedules the pending mutations to be persisted as soon as possible, without waiting for the flush interval.
+     * Does not block.
+     */
+    public void requestFlush() {
+        if (mWriteBehind) {
+            synchronized (mPendingLock) {
+                if (mPendingMutations.isEmpty()) {
+                    return;
+                }
+
+                mFlushScheduled = true;
+            }
+
+            mWriterHandler.removeCallbacks(mFlushRunnable);
+            mWriterHandler.postAtFrontOfQueue(mFlushRunnable);
+        }
+    }
+
+    /**
+     * Persists the pending mutations and waits until they are written.
+     * Should not be called from the UI thread.
+     */
+    public void flush() {
+        if (! mWriteBehind) {
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushPendingMutations();
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await();
+        }
+        catch (InterruptedException exception) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - flush: interrupted while waiting for pending mutations to be written.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Persists the specified mutations, synchronously in a single transaction in write-through mode,
+     * or by the background writer in write-behind mode.
+     * Must be called holding the mutation lock, so that mutations are persisted in the order they were applied to memory.
+     */
+    private void persist(List<LocalStorageMutation> mutations) {
+        if (! mWriteBehind) {
+            mEngine.write(mutations);
+            return;
+        }
+
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (mPendingLock) {
+            for (LocalStorageMutation mutation : mutations) {
+                if (mutation.getType() == LocalStorageMutation.TYPE_CLEAR) {
+                    // Mutations pending before a clear are useless
+                    mPendingMutations.clear();
+                }
+                mPendingMutations.add(mutation);
+            }
+
+            flushNow = mPendingMutations.size() >= mFlushBatchSize;
+            scheduleFlush = ! mFlushScheduled;
+            mFlushScheduled = true;
+        }
+
+        if (flushNow) {
+            mWriterHandler.removeCallbacks(mFlushRunnable);
+            mWriterHandler.post(mFlushRunnable);
+        }
+        else if (scheduleFlush) {
+            mWriterHandler.postDelayed(mFlushRunnable, mFlushInterval);
+        }
+    }
+
+    /**
+     * Writes the pending mutations in a single transaction. Runs on the writer thread.
+     */
+    private void flushPendingMutations() {
+        // The writer thread is the only one writing to the engine in write-behind mode,
+        // so it does not hold the mutation lock and does not block the JavaBridge threads while writing.
+        List<LocalStorageMutation> mutations;
+        synchronized (mPendingLock) {
+            mutations = mPendingMutations;
+            mPendingMutations = new ArrayList<>();
+            mFlushScheduled = false;
+        }
+
+        if (! mutations.isEmpty()) {
+            mEngine.write(mutations);
+        }
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    /**
+     * Returns the given namespace, loading the items on the first access.
+     * @param name: the namespace name, null for the default namespace
+     * @param create: true to create the namespace if absent
+     * @return the namespace, or null if absent and create is false
+     */
+    private Namespace getNamespace(String name, boolean create) {
+        loadIfNeeded();
+
+        if (name == null) {
+            name = DEFAULT_NAMESPACE;
+        }
+
+        Namespace namespace = mNamespaces.get(name);
+        if (namespace == null
+            && create) {
+            Namespace newNamespace = new Namespace(name, getConfiguredQuota(name));
+            namespace = mNamespaces.putIfAbsent(name, newNamespace);
+            if (namespace == null) {
+                namespace = newNamespace;
+            }
+        }
+
+        return namespace;
+    }
+
+    private long getConfiguredQuota(String namespace) {
+        JSONObject namespaces = mConfiguration.optJSONObject(Cobalt.kLocalStorageNamespaces);
+        JSONObject namespaceConfiguration = namespaces != null ? namespaces.optJSONObject(namespace) : null;
+        if (namespaceConfiguration != null) {
+            return Math.max(0, namespaceConfiguration.optLong(Cobalt.kLocalStorageQuota, 0));
+        }
+
+        return Math.max(0, mConfiguration.optLong(Cobalt.kLocalStorageDefaultQuota, 0));
+    }
+
+    private void loadIfNeeded() {
+        if (! mLoaded) {
+            synchronized (mLoadLock) {
+                if (! mLoaded) {
+                    mEngine = createEngine(mContext, mConfiguration);
+                    Map<String, String> storedItems = mEngine.loadAll();
+                    for (Map.Entry<String, String> storedItem : storedItems.entrySet()) {
+                        String storageKey = storedItem.getKey();
+                        int separatorIndex = storageKey.indexOf(NAMESPACE_SEPARATOR);
+
+                        String name = separatorIndex > 0 ? storageKey.substring(0, separatorIndex) : DEFAULT_NAMESPACE;
+                        String key = separatorIndex > 0 ? storageKey.substring(separatorIndex + 1) : storageKey;
+
+                        Namespace namespace = mNamespaces.get(name);
+                        if (namespace == null) {
+                            namespace = new Namespace(name, getConfiguredQuota(name));
+                            mNamespaces.put(name, namespace);
+                        }
+                        namespace.mEntries.put(key, new Entry(storedItem.getValue(), 0));
+                        namespace.mSize += sizeOf(key, storedItem.getValue());
+                    }
+
+                    mLoaded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Items of the default namespace are persisted with their own key, for compatibility with previous versions.
+     * Items of other namespaces are persisted with the namespace name and the separator as prefix.
+     */
+    private static String toStorageKey(String namespace, String key) {
+        return namespace.length() == 0 ? key : namespace + NAMESPACE_SEPARATOR + key;
+    }
+
+    /*********************************************************
+     * INNER CLASSES
+     *********************************************************/
+
+    private static final class Namespace {
+
+        private final String mName;
+        private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+        // Guarded by the mutation lock
+        private long mSize;
+        private long mQuota;
+        private long mEvictionCount;
+
+        Namespace(String name, long quota) {
+            mName = name;
+            mQuota = quota;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String mValue;
+        // Logical access timestamp, used to evict the least recently used items
+        private volatile long mLastAccess;
+
+        Entry(String value, long lastAccess) {
+            mValue = value;
+            mLastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ *
+ * LocalStorageUsage
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+/**
+ * Snapshot of the usage of a {@link LocalStorageStore} namespace.
+ * Sizes count keys and values as UTF-16, two bytes per char.
+ */
+public final class LocalStorageUsage {
+
+    private final String mNamespace;
+    private final int mItemCount;
+    private final long mBytes;
+    private final long mQuota;
+    private final long mEvictionCount;
+
+    LocalStorageUsage(String namespace, int itemCount, long bytes, long quota, long evictionCount) {
+        mNamespace = namespace;
+        mItemCount = itemCount;
+        mBytes = bytes;
+        mQuota = quota;
+        mEvictionCount = evictionCount;
+    }
+
+    public String getNamespace() {
+        return mNamespace;
+    }
+
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the quota of the namespace in bytes, or 0 if it has no quota.
+     */
+    public long getQuota() {
+        return mQuota;
+    }
+
+    /**
+     * @return the number of items evicted from the namespace since the application started.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "\"" + mNamespace + "\" {items: " + mItemCount
+                + ", bytes: " + mBytes
+                + ", quota: " + (mQuota > 0 ? mQuota : "none")
+                + ", evictions: " + mEvictionCount + "}";
+    }
+}
@@ -0,0 +1,540 @@
+/**
+ *
+ * LogLocalStorageEngine
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link LocalStorageEngine} persisting items in an append-only log file, accessed through a memory-mapped {@link FileChannel}.
+ *
+ * Each mutation is appended as a record: magic byte, type, key length, value length, UTF-8 key and value, then a CRC32
+ * of everything but the magic byte. The records of a {@link #write(List)} call are followed by a commit record and the
+ * mapping is forced to disk, so a batch is either entirely replayed at load or not at all. The log is truncated after
+ * the last valid commit at load, discarding the records of a batch interrupted by a crash.
+ *
+ * An in-memory index keeps the offset and size of the live record of each key. When live records account for less
+ * than half of the log, they are copied to a new file which atomically replaces the log.
+ */
+public final class LogLocalStorageEngine implements LocalStorageEngine {
+
+    // TAG
+    private static final String TAG = LogLocalStorageEngine.class.getSimpleName();
+
+    /**
+     * Name of the log file, in the files directory of the application
+     */
+    public static final String FILE_NAME = "local_storage.log";
+    private static final String COMPACTION_FILE_SUFFIX = ".compact";
+
+    private static final byte RECORD_MAGIC = (byte) 0xCB;
+    private static final byte RECORD_TYPE_PUT = 1;
+    private static final byte RECORD_TYPE_REMOVE = 2;
+    private static final byte RECORD_TYPE_CLEAR = 3;
+    private static final byte RECORD_TYPE_COMMIT = 4;
+    // Magic byte, type, key length and value length
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int RECORD_CHECKSUM_SIZE = 4;
+
+    // The mapping grows by at least this size to amortize remappings
+    private static final int MAPPING_GROWTH_SIZE = 1024 * 1024;
+    // Logs smaller than this size are never compacted
+    private static final int COMPACTION_MIN_SIZE = 256 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final File mFile;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    // End of the last committed record
+    private int mEnd;
+
+    // Offset (high 32 bits) and size (low 32 bits) of the live put record of each key
+    private HashMap<String, Long> mIndex = new HashMap<>();
+    private long mLiveBytes;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    /**
+     * @param file: the log file, created if absent
+     */
+    public LogLocalStorageEngine(File file) {
+        mFile = file;
+    }
+
+    /*********************************************************
+     * LOCAL STORAGE ENGINE
+     *********************************************************/
+
+    @Override
+    public synchronized Map<String, String> loadAll() {
+        HashMap<String, String> items = new HashMap<>();
+
+        try {
+            replay(items);
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - loadAll: unable to read " + mFile.getPath() + ".");
+            exception.printStackTrace();
+        }
+
+        return items;
+    }
+
+    @Override
+    public synchronized void write(List<LocalStorageMutation> mutations) {
+        commit(mutations);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+
+        closeFile();
+    }
+
+    /**
+     * Writes the given items to the log, which must be empty, as a single batch.
+     * @param items: the items by key
+     * @return true if every item is persisted, false if the log is not open, not empty or could not be written
+     */
+    public synchronized boolean importItems(Map<String, String> items) {
+        if (mBuffer == null
+            || mEnd != 0) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - importItems: log is not open or not empty.");
+            return false;
+        }
+
+        ArrayList<LocalStorageMutation> mutations = new ArrayList<>(items.size());
+        for (Map.Entry<String, String> item : items.entrySet()) {
+            mutations.add(LocalStorageMutation.put(item.getKey(), item.getValue()));
+        }
+
+        return commit(mutations)
+               && mIndex.size() == items.size();
+    }
+
+    /*********************************************************
+     * COMMIT
+     *********************************************************/
+
+    /**
+     * Appends the given mutations followed by a commit record, then forces the mapping to disk.
+     * @return true if the mutations are persisted
+     */
+    private boolean commit(List<LocalStorageMutation> mutations) {
+        if (mBuffer == null) {
+            // loadAll failed or was not called
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - commit: log is not open, unable to persist " + mutations.size() + " mutation(s).");
+            return false;
+        }
+
+        ArrayList<Record> records = new ArrayList<>(mutations.size() + 1);
+        int position = mEnd;
+
+        try {
+            for (LocalStorageMutation mutation : mutations) {
+                Record record;
+                switch (mutation.getType()) {
+                    case LocalStorageMutation.TYPE_PUT:
+                        record = new Record(RECORD_TYPE_PUT, mutation.getKey(), mutation.getValue());
+                        break;
+                    case LocalStorageMutation.TYPE_REMOVE:
+                        record = new Record(RECORD_TYPE_REMOVE, mutation.getKey(), null);
+                        break;
+                    case LocalStorageMutation.TYPE_CLEAR:
+                        record = new Record(RECORD_TYPE_CLEAR, null, null);
+                        break;
+                    default:
+                        continue;
+                }
+
+                position = append(record, position);
+                records.add(record);
+            }
+
+            position = append(new Record(RECORD_TYPE_COMMIT, null, null), position);
+            mBuffer.force();
+        }
+        catch (IOException exception) {
+            // Records written after mEnd are not committed, they will be overwritten by the next write
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - commit: unable to persist " + mutations.size() + " mutation(s).");
+            exception.printStackTrace();
+            return false;
+        }
+
+        mEnd = position;
+        for (Record record : records) {
+            index(record);
+        }
+
+        if (mEnd >= COMPACTION_MIN_SIZE
+            && mLiveBytes * 2 < mEnd) {
+            compact();
+        }
+
+        return true;
+    }
+
+    /*********************************************************
+     * REPLAY
+     *********************************************************/
+
+    /**
+     * Replays the committed records of the log into the given items and the index, then truncates the log after the last commit.
+     */
+    private void replay(Map<String, String> items) throws IOException {
+        closeFile();
+        mBuffer = null;
+        mIndex = new HashMap<>();
+        mLiveBytes = 0;
+
+        File compactionFile = new File(mFile.getPath() + COMPACTION_FILE_SUFFIX);
+        if (compactionFile.exists()
+            && ! compactionFile.delete()) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - replay: unable to delete interrupted compaction " + compactionFile.getPath() + ".");
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(mFile.getPath() + " is too large to be mapped.");
+        }
+
+        MappedByteBuffer buffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+        ArrayList<Record> batch = new ArrayList<>();
+        int position = 0;
+        int committedEnd = 0;
+        Record record;
+        while ((record = Record.read(buffer, position)) != null) {
+            position += record.mSize;
+
+            if (record.mType == RECORD_TYPE_COMMIT) {
+                for (Record batchRecord : batch) {
+                    apply(batchRecord, items);
+                    index(batchRecord);
+                }
+                batch.clear();
+                committedEnd = position;
+            }
+            else {
+                batch.add(record);
+            }
+        }
+
+        if (position > committedEnd
+            || (committedEnd < length && buffer.get(committedEnd) != 0)) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - replay: discarding uncommitted or corrupted records after offset " + committedEnd + ".");
+        }
+
+        // Truncating then extending the file zero-fills the tail, so that no stale record follows the last commit
+        mRandomAccessFile.setLength(committedEnd);
+        mEnd = committedEnd;
+        map(committedEnd + MAPPING_GROWTH_SIZE);
+    }
+
+    private static void apply(Record record, Map<String, String> items) {
+        switch (record.mType) {
+            case RECORD_TYPE_PUT:
+                items.put(record.mKey, record.mValue);
+                break;
+            case RECORD_TYPE_REMOVE:
+                items.remove(record.mKey);
+                break;
+            case RECORD_TYPE_CLEAR:
+                items.clear();
+                break;
+        }
+    }
+
+    private void index(Record record) {
+        switch (record.mType) {
+            case RECORD_TYPE_PUT:
+                Long previousLocation = mIndex.put(record.mKey, ((long) record.mOffset << 32) | record.mSize);
+                mLiveBytes += record.mSize - (previousLocation != null ? sizeOf(previousLocation) : 0);
+                break;
+            case RECORD_TYPE_REMOVE:
+                Long location = mIndex.remove(record.mKey);
+                if (location != null) {
+                    mLiveBytes -= sizeOf(location);
+                }
+                break;
+            case RECORD_TYPE_CLEAR:
+                mIndex.clear();
+                mLiveBytes = 0;
+                break;
+        }
+    }
+
+    /*********************************************************
+     * APPEND
+     *********************************************************/
+
+    /**
+     * Writes the given record at the given position, growing the mapping if needed.
+     * @return the position following the record
+     */
+    private int append(Record record, int position) throws IOException {
+        byte[] bytes = record.encode();
+
+        if ((long) position + bytes.length > mBuffer.capacity()) {
+            map(Math.max((long) position + bytes.length, (long) mBuffer.capacity() + MAPPING_GROWTH_SIZE));
+        }
+
+        mBuffer.position(position);
+        mBuffer.put(bytes);
+
+        record.mOffset = position;
+        return position + bytes.length;
+    }
+
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(mFile.getPath() + " is too large to be mapped.");
+        }
+
+        if (mRandomAccessFile.length() < size) {
+            mRandomAccessFile.setLength(size);
+        }
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /*********************************************************
+     * COMPACTION
+     *********************************************************/
+
+    /**
+     * Copies the live records to a new file, then atomically replaces the log with it.
+     */
+    private void compact() {
+        File compactionFile = new File(mFile.getPath() + COMPACTION_FILE_SUFFIX);
+        HashMap<String, Long> index = new HashMap<>(mIndex.size());
+        int position = 0;
+
+        RandomAccessFile compactionRandomAccessFile = null;
+        try {
+            compactionRandomAccessFile = new RandomAccessFile(compactionFile, "rw");
+            compactionRandomAccessFile.setLength(0);
+            FileChannel channel = compactionRandomAccessFile.getChannel();
+
+            for (Map.Entry<String, Long> entry : mIndex.entrySet()) {
+                int offset = offsetOf(entry.getValue());
+                int size = sizeOf(entry.getValue());
+
+                // Records are copied as is, their checksum does not depend on their offset
+                ByteBuffer record = mBuffer.duplicate();
+                record.limit(offset + size);
+                record.position(offset);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+
+                index.put(entry.getKey(), ((long) position << 32) | size);
+                position += size;
+            }
+
+            ByteBuffer commit = ByteBuffer.wrap(new Record(RECORD_TYPE_COMMIT, null, null).encode());
+            while (commit.hasRemaining()) {
+                channel.write(commit);
+            }
+            position += commit.capacity();
+
+            channel.force(true);
+            compactionRandomAccessFile.close();
+            compactionRandomAccessFile = null;
+
+            if (! compactionFile.renameTo(mFile)) {
+                throw new IOException("unable to rename " + compactionFile.getPath() + " to " + mFile.getPath());
+            }
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - compact: compaction failed, keeping the current log.");
+            exception.printStackTrace();
+
+            if (compactionRandomAccessFile != null) {
+                try {
+                    compactionRandomAccessFile.close();
+                }
+                catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+            compactionFile.delete();
+            return;
+        }
+
+        if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - compact: log compacted from " + mEnd + " to " + position + " bytes.");
+
+        // The log now is the compacted file
+        closeFile();
+        mBuffer = null;
+        mIndex = index;
+        mEnd = position;
+
+        try {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            map(position + MAPPING_GROWTH_SIZE);
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - compact: unable to map the compacted log, following writes will be lost.");
+            exception.printStackTrace();
+            mBuffer = null;
+        }
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private void closeFile() {
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private static int offsetOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int sizeOf(long location) {
+        return (int) location;
+    }
+
+    /*********************************************************
+     * INNER CLASSES
+     *********************************************************/
+
+    private static final class Record {
+
+        private final byte mType;
+        private final String mKey;
+        private final String mValue;
+        private int mOffset;
+        private int mSize;
+
+        Record(byte type, String key, String value) {
+            mType = type;
+            mKey = key;
+            mValue = value;
+        }
+
+        byte[] encode() {
+            byte[] key = mKey != null ? mKey.getBytes(UTF8) : new byte[0];
+            byte[] value = mValue != null ? mValue.getBytes(UTF8) : new byte[0];
+
+            mSize = RECORD_HEADER_SIZE + key.length + value.length + RECORD_CHECKSUM_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(mSize);
+            buffer.put(RECORD_MAGIC)
+                  .put(mType)
+                  .putInt(key.length)
+                  .putInt(value.length)
+                  .put(key)
+                  .put(value);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), 1, mSize - 1 - RECORD_CHECKSUM_SIZE);
+            buffer.putInt((int) checksum.getValue());
+
+            return buffer.array();
+        }
+
+        /**
+         * Reads the record at the given position.
+         * @return the record, or null if there is no valid record at this position
+         */
+        static Record read(ByteBuffer buffer, int position) {
+            int limit = buffer.limit();
+            if ((long) position + RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE > limit
+                || buffer.get(position) != RECORD_MAGIC) {
+                return null;
+            }
+
+            byte type = buffer.get(position + 1);
+            int keyLength = buffer.getInt(position + 2);
+            int valueLength = buffer.getInt(position + 6);
+            if (type < RECORD_TYPE_PUT
+                || type > RECORD_TYPE_COMMIT
+                || keyLength < 0
+                || valueLength < 0
+                || (long) position + RECORD_HEADER_SIZE + keyLength + valueLength + RECORD_CHECKSUM_SIZE > limit) {
+                return null;
+            }
+
+            byte[] content = new byte[RECORD_HEADER_SIZE - 1 + keyLength + valueLength];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + 1);
+            source.get(content);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(content, 0, content.length);
+            if ((int) checksum.getValue() != buffer.getInt(position + RECORD_HEADER_SIZE + keyLength + valueLength)) {
+                return null;
+            }
+
+            Record record = new Record(type,
+                                       type == RECORD_TYPE_PUT || type == RECORD_TYPE_REMOVE ? new String(content, RECORD_HEADER_SIZE - 1, keyLength, UTF8) : null,
+                                       type == RECORD_TYPE_PUT ? new String(content, RECORD_HEADER_SIZE - 1 + keyLength, valueLength, UTF8) : null);
+            record.mOffset = position;
+            record.mSize = RECORD_HEADER_SIZE + keyLength + valueLength + RECORD_CHECKSUM_SIZE;
+            return record;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ *
+ * SQLiteLocalStorageEngine
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.database;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link LocalStorageEngine} persisting items in the {@link LocalStorage} SQLite database.
+ * A single connection is kept open in write-ahead logging mode and mutations are executed with precompiled statements.
+ *
+ * Values of at least {@link #LARGE_VALUE_THRESHOLD} chars are not stored in the value column, which would make
+ * multi-megabyte rows thrash the page cache and the CursorWindow. They are gzipped, unless it saves less than 10%,
+ * and split in rows of {@link #CHUNK_SIZE} bytes in the chunks table, then streamed back at load.
+ */
+public final class SQLiteLocalStorageEngine implements LocalStorageEngine {
+
+    // TAG
+    private static final String TAG = SQLiteLocalStorageEngine.class.getSimpleName();
+
+    // Values of at least this length, in chars, are stored in chunks
+    static final int LARGE_VALUE_THRESHOLD = 16 * 1024;
+    // Size of the chunks, in bytes
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final int ENCODING_TEXT = 0;
+    private static final int ENCODING_CHUNKED = 1;
+    private static final int ENCODING_GZIP_CHUNKED = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String INSERT_OR_REPLACE = "INSERT OR REPLACE INTO " + LocalStorage.LOCALSTORAGE_TABLE_NAME
+                                                    + " (" + LocalStorage.LOCALSTORAGE_ID + ", " + LocalStorage.LOCALSTORAGE_VALUE + ", " + LocalStorage.LOCALSTORAGE_ENCODING + ")"
+                                                    + " VALUES (?, ?, ?);";
+    private static final String INSERT_CHUNK = "INSERT INTO " + LocalStorage.LOCALSTORAGE_CHUNKS_TABLE_NAME
+                                               + " (" + LocalStorage.LOCALSTORAGE_ID + ", " + LocalStorage.LOCALSTORAGE_CHUNK_INDEX + ", " + LocalStorage.LOCALSTORAGE_CHUNK_DATA + ")"
+                                               + " VALUES (?, ?, ?);";
+    private static final String DELETE_CHUNKS = "DELETE FROM " + LocalStorage.LOCALSTORAGE_CHUNKS_TABLE_NAME
+                                                + " WHERE " + LocalStorage.LOCALSTORAGE_ID + " = ?;";
+    private static final String DELETE_ALL_CHUNKS = "DELETE FROM " + LocalStorage.LOCALSTORAGE_CHUNKS_TABLE_NAME + ";";
+    private static final String DELETE = "DELETE FROM " + LocalStorage.LOCALSTORAGE_TABLE_NAME
+                                         + " WHERE " + LocalStorage.LOCALSTORAGE_ID + " = ?;";
+    private static final String DELETE_ALL = "DELETE FROM " + LocalStorage.LOCALSTORAGE_TABLE_NAME + ";";
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final LocalStorage mLocalStorage;
+
+    private SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsertOrReplaceStatement;
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mDeleteAllStatement;
+    private SQLiteStatement mInsertChunkStatement;
+    private SQLiteStatement mDeleteChunksStatement;
+    private SQLiteStatement mDeleteAllChunksStatement;
+
+    // Statistics
+    private long mLargeValueCount;
+    private long mCompressedValueCount;
+    private long mUncompressedBytes;
+    private long mStoredBytes;
+    private long mLoadedValueCount;
+    private long mDecodedValueCount;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    public SQLiteLocalStorageEngine(Context context) {
+        mLocalStorage = LocalStorage.getInstance(context);
+    }
+
+    /*********************************************************
+     * LOCAL STORAGE ENGINE
+     *********************************************************/
+
+    @Override
+    public synchronized Map<String, String> loadAll() {
+        HashMap<String, String> items = new HashMap<>();
+
+        Cursor cursor = getDatabase().query(LocalStorage.LOCALSTORAGE_TABLE_NAME,
+                                            new String[] {LocalStorage.LOCALSTORAGE_ID, LocalStorage.LOCALSTORAGE_VALUE, LocalStorage.LOCALSTORAGE_ENCODING},
+                                            null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                int encoding = cursor.getInt(2);
+
+                String value;
+                if (encoding == ENCODING_TEXT) {
+                    value = cursor.getString(1);
+                }
+                else {
+                    value = readChunks(key, encoding);
+                    mDecodedValueCount++;
+                }
+
+                if (value != null) {
+                    items.put(key, value);
+                    mLoadedValueCount++;
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        return items;
+    }
+
+    @Override
+    public synchronized void write(List<LocalStorageMutation> mutations) {
+        SQLiteDatabase database = getDatabase();
+
+        database.beginTransactionNonExclusive();
+        try {
+            for (LocalStorageMutation mutation : mutations) {
+                switch (mutation.getType()) {
+                    case LocalStorageMutation.TYPE_PUT:
+                        mDeleteChunksStatement.bindString(1, mutation.getKey());
+                        mDeleteChunksStatement.executeUpdateDelete();
+                        if (mutation.getValue().length() < LARGE_VALUE_THRESHOLD) {
+                            insertOrReplace(mutation.getKey(), mutation.getValue(), ENCODING_TEXT);
+                        }
+                        else {
+                            insertOrReplaceLargeValue(mutation.getKey(), mutation.getValue());
+                        }
+                        break;
+                    case LocalStorageMutation.TYPE_REMOVE:
+                        mDeleteStatement.bindString(1, mutation.getKey());
+                        mDeleteStatement.executeUpdateDelete();
+                        mDeleteChunksStatement.bindString(1, mutation.getKey());
+                        mDeleteChunksStatement.executeUpdateDelete();
+                        break;
+                    case LocalStorageMutation.TYPE_CLEAR:
+                        mDeleteAllStatement.executeUpdateDelete();
+                        mDeleteAllChunksStatement.executeUpdateDelete();
+                        break;
+                }
+            }
+
+            database.setTransactionSuccessful();
+        }
+        catch (SQLException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - write: unable to persist " + mutations.size() + " mutation(s).");
+            exception.printStackTrace();
+        }
+        finally {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mDatabase != null) {
+            mInsertOrReplaceStatement.close();
+            mDeleteStatement.close();
+            mDeleteAllStatement.close();
+            mInsertChunkStatement.close();
+            mDeleteChunksStatement.close();
+            mDeleteAllChunksStatement.close();
+            mLocalStorage.close();
+
+            mDatabase = null;
+        }
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private SQLiteDatabase getDatabase() {
+        if (mDatabase == null) {
+            mLocalStorage.setWriteAheadLoggingEnabled(true);
+            mDatabase = mLocalStorage.getWritableDatabase();
+
+            mInsertOrReplaceStatement = mDatabase.compileStatement(INSERT_OR_REPLACE);
+            mDeleteStatement = mDatabase.compileStatement(DELETE);
+            mDeleteAllStatement = mDatabase.compileStatement(DELETE_ALL);
+            mInsertChunkStatement = mDatabase.compileStatement(INSERT_CHUNK);
+            mDeleteChunksStatement = mDatabase.compileStatement(DELETE_CHUNKS);
+            mDeleteAllChunksStatement = mDatabase.compileStatement(DELETE_ALL_CHUNKS);
+        }
+
+        return mDatabase;
+    }
+
+    /*********************************************************
+     * STATISTICS
+     *********************************************************/
+
+    /**
+     * @return the number of items persisted in the database, whether or not they can be decoded.
+     */
+    public synchronized long getItemCount() {
+        return DatabaseUtils.queryNumEntries(getDatabase(), LocalStorage.LOCALSTORAGE_TABLE_NAME);
+    }
+
+    /**
+     * @return the statistics of large values written and loaded since the engine was created.
+     */
+    public synchronized LocalStorageCompressionStats getCompressionStats() {
+        return new LocalStorageCompressionStats(mLargeValueCount, mCompressedValueCount, mUncompressedBytes, mStoredBytes,
+                                                mLoadedValueCount, mDecodedValueCount);
+    }
+
+    /*********************************************************
+     * LARGE VALUES
+     *********************************************************/
+
+    private void insertOrReplace(String key, String value, int encoding) {
+        mInsertOrReplaceStatement.bindString(1, key);
+        mInsertOrReplaceStatement.bindString(2, value);
+        mInsertOrReplaceStatement.bindLong(3, encoding);
+        mInsertOrReplaceStatement.executeInsert();
+    }
+
+    /**
+     * Stores the given value in chunks, gzipped if it saves at least 10%, and an empty value in the items table.
+     * Previous chunks of the key must have been deleted.
+     */
+    private void insertOrReplaceLargeValue(String key, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        byte[] compressedBytes = gzip(bytes);
+
+        int encoding;
+        byte[] data;
+        if (compressedBytes != null
+            && compressedBytes.length <= bytes.length - bytes.length / 10) {
+            encoding = ENCODING_GZIP_CHUNKED;
+            data = compressedBytes;
+            mCompressedValueCount++;
+        }
+        else {
+            encoding = ENCODING_CHUNKED;
+            data = bytes;
+        }
+
+        mLargeValueCount++;
+        mUncompressedBytes += bytes.length;
+        mStoredBytes += data.length;
+
+        int chunkIndex = 0;
+        for (int offset = 0 ; offset < data.length ; offset += CHUNK_SIZE) {
+            mInsertChunkStatement.bindString(1, key);
+            mInsertChunkStatement.bindLong(2, chunkIndex++);
+            mInsertChunkStatement.bindBlob(3, Arrays.copyOfRange(data, offset, Math.min(offset + CHUNK_SIZE, data.length)));
+            mInsertChunkStatement.executeInsert();
+        }
+
+        insertOrReplace(key, "", encoding);
+    }
+
+    /**
+     * Reads the chunks of the given key as a stream.
+     * @return the value, or null if the chunks could not be decoded
+     */
+    private String readChunks(String key, int encoding) {
+        Cursor cursor = getDatabase().query(LocalStorage.LOCALSTORAGE_CHUNKS_TABLE_NAME,
+                                            new String[] {LocalStorage.LOCALSTORAGE_CHUNK_DATA},
+                                            LocalStorage.LOCALSTORAGE_ID + " = ?", new String[] {key},
+                                            null, null, LocalStorage.LOCALSTORAGE_CHUNK_INDEX);
+        try {
+            InputStream inputStream = new SequenceInputStream(new ChunkEnumeration(cursor));
+            if (encoding == ENCODING_GZIP_CHUNKED) {
+                inputStream = new GZIPInputStream(inputStream, 8192);
+            }
+
+            Reader reader = new InputStreamReader(inputStream, UTF8);
+            StringBuilder value = new StringBuilder();
+            char[] buffer = new char[8192];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                value.append(buffer, 0, length);
+            }
+
+            return value.toString();
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readChunks: unable to decode value of " + key + ", ignoring it.");
+            exception.printStackTrace();
+            return null;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 4);
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream, 8192);
+            gzipOutputStream.write(bytes);
+            gzipOutputStream.close();
+            return outputStream.toByteArray();
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - gzip: IOException");
+            exception.printStackTrace();
+            return null;
+        }
+    }
+
+    /*********************************************************
+     * INNER CLASSES
+     *********************************************************/
+
+    /**
+     * Enumerates the chunks of a cursor as streams, reading each chunk from the cursor only when needed.
+     */
+    private static final class ChunkEnumeration implements Enumeration<InputStream> {
+
+        private final Cursor mCursor;
+        private Boolean mHasNext;
+
+        ChunkEnumeration(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            if (mHasNext == null) {
+                mHasNext = mCursor.moveToNext();
+            }
+
+            return mHasNext;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (! hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+
+            mHasNext = null;
+            return new ByteArrayInputStream(mCursor.getBlob(0));
+        }
+    }
+}
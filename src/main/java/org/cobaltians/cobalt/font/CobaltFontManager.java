@@ -30,7 +30,6 @@
 package org.cobaltians.cobalt.font;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -165,14 +164,13 @@ public class CobaltFontManager {
 
     // TODO: remove
     private static JSONObject getConfiguration() {
-        String mResourcePath = Cobalt.getInstance(mContext).getResourcePathFromAsset();
-        String configuration = readFileFromAssets( mResourcePath + CONF_FILE);
+        String configuration = readFileFromAssets(CONF_FILE);
 
         try {
             return new JSONObject(configuration);
         }
         catch (JSONException exception) {
-            if (Cobalt.DEBUG) Log.e(TAG, TAG + " - getConfiguration: check cobalt.conf. File is missing or not at " + mResourcePath + CONF_FILE);
+            if (Cobalt.DEBUG) Log.e(TAG, TAG + " - getConfiguration: check cobalt.conf. File is missing or not at " + Cobalt.getInstance(mContext).getResourcePath() + CONF_FILE);
             exception.printStackTrace();
         }
 
@@ -182,8 +180,8 @@ public class CobaltFontManager {
     // TODO: remove
     private static String readFileFromAssets(String file) {
         try {
-            AssetManager assetManager = mContext.getAssets();
-            InputStream inputStream = assetManager.open(file);
+            // Reads from the resource bundle if any
+            InputStream inputStream = Cobalt.getInstance(mContext).openResource(file);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
             StringBuilder fileContent = new StringBuilder();
             int character;
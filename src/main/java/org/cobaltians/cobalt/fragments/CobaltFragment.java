@@ -36,6 +36,9 @@ import org.cobaltians.cobalt.customviews.CobaltSwipeRefreshLayout;
 import org.cobaltians.cobalt.customviews.IScrollListener;
 import org.cobaltians.cobalt.customviews.OverScrollingWebView;
 import org.cobaltians.cobalt.database.LocalStorageJavaScriptInterface;
+import org.cobaltians.cobalt.database.LocalStorageStore;
+import org.cobaltians.cobalt.metrics.CobaltMetrics;
+import org.cobaltians.cobalt.metrics.CobaltTimeline;
 import org.cobaltians.cobalt.plugin.CobaltPluginManager;
 
 import android.annotation.SuppressLint;
@@ -48,6 +51,8 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentTransaction;
@@ -56,13 +61,14 @@ import android.support.v4.widget.SwipeRefreshLayout;
 import android.util.Log;
 import android.view.*;
 import android.webkit.JavascriptInterface;
+import android.webkit.ValueCallback;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -77,6 +83,33 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 
     // TAG
     protected final static String TAG = CobaltFragment.class.getSimpleName();
+
+    /**
+     * Function of the bridge script, evaluated in the global scope, installing the shim which buffers messages sent
+     * before cobalt.init returns in the document still loading. cobalt becomes an accessor, so that the cobalt.js loaded later
+     * by the page replaces the injected one without losing the buffered messages.
+     */
+    private static final String BRIDGE_SHIM = "(function(script) {\n"
+                                              + "  if (document.readyState != 'loading') return false;\n"
+                                              + "  var pending = [], initialized = false, bridge;\n"
+                                              + "  function wrap(value) {\n"
+                                              + "    if (value && typeof value.init == 'function' && ! value.init.cobaltShim) {\n"
+                                              + "      var init = value.init;\n"
+                                              + "      value.init = function() {\n"
+                                              + "        var result = init.apply(this, arguments);\n"
+                                              + "        initialized = true;\n"
+                                              + "        while (pending.length > 0) value.execute(pending.shift());\n"
+                                              + "        return result;\n"
+                                              + "      };\n"
+                                              + "      value.init.cobaltShim = true;\n"
+                                              + "    }\n"
+                                              + "    return value;\n"
+                                              + "  }\n"
+                                              + "  Object.defineProperty(window, 'cobalt', {configurable: true, enumerable: true, get: function() { return wrap(bridge); }, set: function(value) { bridge = value; }});\n"
+                                              + "  window.cobaltBridgeShim = {execute: function(message) { if (initialized) bridge.execute(message); else pending.push(message); }};\n"
+                                              + "  if (script) { try { (0, eval)(script); } catch (exception) { console.error(exception); } }\n"
+                                              + "  return true;\n"
+                                              + "})\n";
 	
 	/*********************************************************
 	 * MEMBERS
@@ -89,13 +122,20 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 	protected OverScrollingWebView mWebView;
     protected CobaltSwipeRefreshLayout mSwipeRefreshLayout;
 
-	private ArrayList<JSONObject> mToJSWaitingCallsQueue = new ArrayList<>();
+	private final ArrayList<String> mToJSWaitingCallsQueue = new ArrayList<>();
+    private final AtomicInteger mPendingScriptsCount = new AtomicInteger();
     private ArrayList<String> mFromJSWaitingCallsQueue = new ArrayList<>();
     private ArrayList<AlertDialog> mPendingAlertDialogs = new ArrayList<>();
     private boolean mActive = false;
 
 	private boolean mPreloadOnCreate = true;
-	private boolean mCobaltIsReady = false;
+	// Guarded by the lock of mToJSWaitingCallsQueue for writes
+	private volatile boolean mCobaltIsReady = false;
+    // True once the bridge shim of the current page buffers messages until cobalt.init. Guarded by the lock of mToJSWaitingCallsQueue
+    private boolean mBridgeShimReady = false;
+    private int mPageGeneration;
+    // URL of the page being loaded, read by the resource interceptors off the main thread
+    private volatile String mPageUrl;
 
 	private boolean mIsInfiniteScrollRefreshing = false;
 
@@ -103,6 +143,8 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 
     private boolean mAllowCommit;
 
+    private CobaltTimeline mTimeline;
+
 
     /**************************************************************************************************
 	 * LIFECYCLE
@@ -121,6 +163,19 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
         super.onCreate(savedInstanceState);
         mPluginManager = CobaltPluginManager.getInstance(mContext);
         setRetainInstance(true);
+
+        // Restored fragments keep the times of their first creation in their arguments
+        Bundle args = getArguments();
+        if (savedInstanceState == null
+            && args != null) {
+            CobaltTimeline timeline = getTimeline();
+            if (args.containsKey(Cobalt.kTimelineNavigationTime)) {
+                timeline.mark(CobaltTimeline.MILESTONE_NAVIGATION, args.getLong(Cobalt.kTimelineNavigationTime));
+            }
+            if (args.containsKey(Cobalt.kTimelineActivityCreateTime)) {
+                timeline.mark(CobaltTimeline.MILESTONE_ACTIVITY_CREATE, args.getLong(Cobalt.kTimelineActivityCreateTime));
+            }
+        }
     }
 
 	@Override
@@ -161,8 +216,14 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 
         mAllowCommit = true;
 
+        CobaltTimeline.beginSection(CobaltTimeline.MILESTONE_WEB_VIEW_ADD);
 		addWebView();
+        CobaltTimeline.endSection();
+        getTimeline().mark(CobaltTimeline.MILESTONE_WEB_VIEW_ADD);
+
+        CobaltTimeline.beginSection(CobaltTimeline.MILESTONE_CONTENT_LOAD);
 		preloadContent();
+        CobaltTimeline.endSection();
 	}
 
     @Override
@@ -349,17 +410,77 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 
         // Add JavaScript interface so JavaScript can call native functions.
         mWebView.addJavascriptInterface(javascriptInterface, "Android");
-        mWebView.addJavascriptInterface(new LocalStorageJavaScriptInterface(mContext), "LocalStorage");
+        mWebView.addJavascriptInterface(new LocalStorageJavaScriptInterface(mContext, getLocalStorageNamespace(), this), "LocalStorage");
+
+        mWebView.setWebViewClient(new CobaltWebViewClient(this));
+    }
+
+    /**
+     * Called by the {@link CobaltWebViewClient} when the Web view starts loading a page, before its scripts run.
+     * Messages are queued until the new page is ready, unless its controller declares a bridge script:
+     * then a shim buffering messages is injected with the script, and queued messages are flushed to it at once.
+     * The shim hands them to whichever cobalt object the page ends up with, the injected one or its own cobalt.js,
+     * as soon as cobalt.init returns, without waiting for the cobaltIsReady message, which still checks the Web version.
+     * The injection needs evaluateJavascript, from KitKat.
+     * @param url: the page URL
+     */
+    @SuppressLint("NewApi")
+    void prepareBridge(String url) {
+        mPageUrl = url;
+
+        final int pageGeneration;
+        synchronized (mToJSWaitingCallsQueue) {
+            mCobaltIsReady = false;
+            mBridgeShimReady = false;
+            pageGeneration = ++mPageGeneration;
+        }
 
-        WebViewClient webViewClient = new WebViewClient() {
+        String bridgeScript = getBridgeScript();
+        if (bridgeScript == null
+            || mWebView == null
+            || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
 
+        String script = Cobalt.getInstance(mContext).getBridgeScript(bridgeScript);
+        if (script.length() == 0) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - prepareBridge: " + bridgeScript + " is missing or empty.");
+        }
+
+        mWebView.evaluateJavascript(BRIDGE_SHIM + "(" + JSONObject.quote(script) + ")", new ValueCallback<String>() {
             @Override
-            public void onPageFinished(WebView view, String url) {
-                executeToJSWaitingCalls();
+            public void onReceiveValue(String injected) {
+                synchronized (mToJSWaitingCallsQueue) {
+                    if (pageGeneration != mPageGeneration) {
+                        // Another page started meanwhile
+                        return;
+                    }
+
+                    if ("true".equals(injected)) {
+                        if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - prepareBridge: bridge shim injected, flushing queued messages.");
+                        mBridgeShimReady = true;
+                        executeToJSWaitingCalls();
+                    }
+                    else if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - prepareBridge: bridge shim not injected, waiting for cobaltIsReady.");
+                }
             }
-        };
+        });
+    }
+
+    /**
+     * Called by the {@link CobaltWebViewClient} when the Web view starts loading a page.
+     * @param url: the page URL
+     */
+    protected void onPageStarted(String url) {
 
-        mWebView.setWebViewClient(webViewClient);
+    }
+
+    /**
+     * Called by the {@link CobaltWebViewClient} when the Web view has loaded a page.
+     * @param url: the page URL
+     */
+    protected void onPageFinished(String url) {
+        executeToJSWaitingCalls();
     }
 
     @SuppressLint("NewApi")
@@ -374,6 +495,7 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
         String page = (getPage() != null) ? getPage() : "index.html";
 		
 		if (mPreloadOnCreate) {
+            getTimeline().mark(CobaltTimeline.MILESTONE_CONTENT_LOAD);
 			if (page.startsWith("https://") || page.startsWith("http://")) {
                 mWebView.loadUrl(page);
             } else {
@@ -411,45 +533,135 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
 	 */
 	private void executeScriptInWebView(final JSONObject jsonObj) {
         if (jsonObj != null) {
-			if (mWebView != null
-                && mWebView.getHandler() != null
-                && mCobaltIsReady) {
-                mWebView.getHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Line & paragraph separators are not JSON compliant but supported by JSONObject
-                        String script = jsonObj.toString().replaceAll("[\u2028\u2029]", "");
-
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                            // Since KitKat, messages are automatically urldecoded when received from the web. encoding them to fix this.
-                            script = script.replaceAll("%", "%25");
-                        }
-
-                        String url = "javascript:cobalt.execute(" + script + ");";
-                        mWebView.loadUrl(url);
-                    }
-                });
-			}
-			else {
-				if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - executeScriptInWebView: adding message to queue: " + jsonObj);
-                mToJSWaitingCallsQueue.add(jsonObj);
-			}
+            executeScriptInWebView(serializeMessage(jsonObj));
 		}
         else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - executeScriptInWebView: jsonObj is null!");
 	}
 
-    public void executeToJSWaitingCalls() {
-        ArrayList<JSONObject> toJSWaitingCallsQueue = new ArrayList<>(mToJSWaitingCallsQueue);
-		int toJSWaitingCallsQueueLength = toJSWaitingCallsQueue.size();
+    /**
+     * Sends a message serialized with {@link #serializeMessage(JSONObject)} to be executed by JavaScript in Web view
+     * @param script: the serialized message.
+     */
+    private void executeScriptInWebView(final String script) {
+        // May be called from any thread: checking readiness and queuing must be atomic with the drain of the queue
+        synchronized (mToJSWaitingCallsQueue) {
+            if (canExecuteScripts()) {
+                postScript(script);
+            }
+            else {
+                if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - executeScriptInWebView: adding message to queue: " + script);
+                mToJSWaitingCallsQueue.add(script);
+            }
+        }
+    }
 
-        mToJSWaitingCallsQueue.clear();
+    public void executeToJSWaitingCalls() {
+        synchronized (mToJSWaitingCallsQueue) {
+            if (! canExecuteScripts()) {
+                return;
+            }
 
-		for (int i = 0 ; i < toJSWaitingCallsQueueLength ; i++) {
-			if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - executeToJSWaitingCalls: execute " + toJSWaitingCallsQueue.get(i).toString());
-			executeScriptInWebView(toJSWaitingCallsQueue.get(i));
-		}
+            for (String script : mToJSWaitingCallsQueue) {
+                if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - executeToJSWaitingCalls: execute " + script);
+                postScript(script);
+            }
+            mToJSWaitingCallsQueue.clear();
+        }
 	}
 
+    /**
+     * Must be called holding the lock of the queue.
+     */
+    private boolean canExecuteScripts() {
+        return (mCobaltIsReady || mBridgeShimReady)
+               && mWebView != null
+               && mWebView.getHandler() != null;
+    }
+
+    /**
+     * Posts the given message to the Web view. Must be called holding the lock of the queue, so that messages keep their order.
+     */
+    private void postScript(final String script) {
+        // Messages sent before cobaltIsReady go through the shim, which keeps them until the page's handlers are registered
+        final String execute = mCobaltIsReady ? "cobalt.execute" : "cobaltBridgeShim.execute";
+        mPendingScriptsCount.incrementAndGet();
+        boolean posted = mWebView.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                onPendingScriptExecuted();
+
+                String url = "javascript:" + execute + "(" + script + ");";
+                mWebView.loadUrl(url);
+            }
+        });
+        if (! posted) {
+            onPendingScriptExecuted();
+        }
+    }
+
+    /**
+     * Serializes a message the way it is passed to cobalt.execute in the Web view.
+     * Useful to send the same message to several fragments with {@link #sendSerializedMessage(String)} while serializing it only once.
+     * @param message: the message to serialize.
+     * @return the serialized message.
+     */
+    public static String serializeMessage(JSONObject message) {
+        // Line & paragraph separators are not JSON compliant but supported by JSONObject
+        String script = message.toString().replaceAll("[\u2028\u2029]", "");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Since KitKat, messages are automatically urldecoded when received from the web. encoding them to fix this.
+            script = script.replaceAll("%", "%25");
+        }
+
+        return script;
+    }
+
+    private void onPendingScriptExecuted() {
+        synchronized (mToJSWaitingCallsQueue) {
+            mPendingScriptsCount.decrementAndGet();
+            mToJSWaitingCallsQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be executed by the Web view,
+     * either queued until Cobalt is ready or posted to the Web view but not executed yet.
+     * @return the outgoing queue depth.
+     */
+    public int getOutgoingQueueDepth() {
+        synchronized (mToJSWaitingCallsQueue) {
+            return mToJSWaitingCallsQueue.size() + mPendingScriptsCount.get();
+        }
+    }
+
+    /**
+     * Blocks the calling thread until the outgoing queue depth is lower than or equal to the specified depth.
+     * Must not be called from the UI thread, which executes the outgoing messages.
+     * @param maxDepth: the outgoing queue depth to wait for.
+     * @param timeoutMillis: the maximum time to wait, in milliseconds.
+     * @return true if the outgoing queue depth is lower than or equal to maxDepth, false if the timeout elapsed before.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public boolean awaitOutgoingQueueDepth(int maxDepth, long timeoutMillis) throws InterruptedException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException(TAG + " - awaitOutgoingQueueDepth: must not be called from the UI thread.");
+        }
+
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (mToJSWaitingCallsQueue) {
+            while (mToJSWaitingCallsQueue.size() + mPendingScriptsCount.get() > maxDepth) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mToJSWaitingCallsQueue.wait(remaining);
+            }
+        }
+
+        return true;
+    }
+
 	/****************************************************************************************
 	 * MESSAGE SENDING
 	 ***************************************************************************************/
@@ -538,6 +750,17 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
         else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - sendMessage: message is null !");
     }
 
+    /**
+     * Sends a message already serialized with {@link #serializeMessage(JSONObject)}
+     * @param serializedMessage: the serialized message
+     */
+    public void sendSerializedMessage(final String serializedMessage) {
+        if (serializedMessage != null) {
+            executeScriptInWebView(serializedMessage);
+        }
+        else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - sendSerializedMessage: serializedMessage is null !");
+    }
+
 	/****************************************************************************************
 	 * MESSAGE HANDLING
 	 ***************************************************************************************/
@@ -643,6 +866,17 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
                             exception.printStackTrace();
                         }
                         break;
+                    // PERF
+                    case Cobalt.JSTypePerf:
+                        data = jsonObj.optJSONObject(Cobalt.kJSData);
+                        JSONArray entries = data != null ? data.optJSONArray(Cobalt.kJSPerfEntries) : null;
+                        if (entries != null) {
+                            CobaltMetrics.getInstance().recordPerformanceEntries(getTimeline().getController(), getPage(), entries);
+                            messageHandled = true;
+                        }
+                        else if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - onCobaltMessage: " +
+                                Cobalt.kJSData + "." + Cobalt.kJSPerfEntries + " field is missing.\n" + message);
+                        break;
                     // NAVIGATION
                     case Cobalt.JSTypeNavigation:
                         try {
@@ -858,6 +1092,9 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
     }
 
 	private void onCobaltIsReady(String version) {
+        getTimeline().mark(CobaltTimeline.MILESTONE_COBALT_READY);
+        if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - onCobaltIsReady: timeline " + getTimeline());
+
         String androidVersion = getResources().getString(R.string.version_name);
         if (! androidVersion.equals(version)) {
             Log.w(TAG, "Cobalt version mismatch: Android Cobalt version is " + androidVersion +
@@ -868,8 +1105,10 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
             Log.i(Cobalt.TAG, TAG + " - onCobaltIsReady: version " + androidVersion);
         }
 
-		mCobaltIsReady = true;
-        executeToJSWaitingCalls();
+        synchronized (mToJSWaitingCallsQueue) {
+            mCobaltIsReady = true;
+            executeToJSWaitingCalls();
+        }
 
         ((Activity) mContext).runOnUiThread(new Runnable() {
             @Override
@@ -1799,4 +2038,61 @@ public abstract class CobaltFragment extends Fragment implements IScrollListener
             return null;
         }
     }
+
+    /**
+     * Returns the LocalStorage namespace of the Web view, declared by the localStorageNamespace field of its controller in cobalt.conf.
+     * "@page" uses the page as namespace.
+     * @return the namespace, or the default namespace if not declared.
+     */
+    protected String getLocalStorageNamespace() {
+        Bundle args = getArguments();
+        String namespace = args != null ? args.getString(Cobalt.kLocalStorageNamespace) : null;
+        if (Cobalt.LocalStorageNamespacePage.equals(namespace)) {
+            namespace = getPage();
+        }
+
+        return namespace != null ? namespace : LocalStorageStore.DEFAULT_NAMESPACE;
+    }
+
+    /**
+     * Returns the loading timeline of the screen, from the navigation to it until the Web layer is ready.
+     * @return the timeline
+     */
+    public synchronized CobaltTimeline getTimeline() {
+        if (mTimeline == null) {
+            Bundle args = getArguments();
+            mTimeline = new CobaltTimeline(args != null ? args.getString(Cobalt.kController) : null, getPage());
+        }
+
+        return mTimeline;
+    }
+
+    /**
+     * Returns how the http and https resources of the Web view are cached on disk, declared by the cacheMode field
+     * of its controller in cobalt.conf: networkFirst, cacheFirst or staleWhileRevalidate.
+     * @return the cache mode, or null to let the Web view use its own cache.
+     */
+    public String getCacheMode() {
+        Bundle args = getArguments();
+        return args != null ? args.getString(Cobalt.kCacheMode) : null;
+    }
+
+    /**
+     * Returns the pinned copy of cobalt.js injected in the pages of the Web view as soon as they start loading,
+     * declared by the bridgeScript field of its controller in cobalt.conf, relative to the resource path.
+     * @return the bridge script path, or null to wait for the pages to load their own cobalt.js.
+     */
+    public String getBridgeScript() {
+        Bundle args = getArguments();
+        return args != null ? args.getString(Cobalt.kBridgeScript) : null;
+    }
+
+    /**
+     * Returns the URL of the page the Web view is loading or has loaded, which may be called from any thread,
+     * unlike {@link WebView#getUrl()}.
+     * @return the page URL, or null if no page has started loading yet.
+     */
+    public String getPageUrl() {
+        return mPageUrl;
+    }
 }
@@ -31,13 +31,10 @@ package org.cobaltians.cobalt.fragments;
 
 import org.cobaltians.cobalt.Cobalt;
 
-import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.support.v4.app.FragmentTransaction;
 import android.util.Log;
 import android.view.View;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
 
 import org.cobaltians.cobalt.activities.CobaltActivity;
 import org.json.JSONException;
@@ -84,35 +81,24 @@ public class CobaltWebLayerFragment extends CobaltFragment {
 	 *
 	 **********************************************************************************************/
 
-	protected void setWebViewSettings(CobaltFragment javascriptInterface) {
-		super.setWebViewSettings(javascriptInterface);
-
-		WebViewClient webViewClient = new WebViewClient() {
-
-			@Override
-			public void onPageStarted(WebView view, String url, Bitmap favicon) {
-				super.onPageStarted(view, url, favicon);
-
-				if (mRootFragment != null) {
-					mRootFragment.sendEvent(Cobalt.JSEventonWebLayerLoading, null, null);
-				}
-				else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - onPageStarted: no root fragment found");
-			}
-
-			@Override
-			public void onPageFinished(WebView view, String url) {
-				super.onPageFinished(view, url);
+	@Override
+	protected void onPageStarted(String url) {
+		super.onPageStarted(url);
 
-				if (mRootFragment != null) {
-					mRootFragment.sendEvent(Cobalt.JSEventonWebLayerLoaded, null, null);
-				}
-				else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - onPageFinished: no root fragment found");
+		if (mRootFragment != null) {
+			mRootFragment.sendEvent(Cobalt.JSEventonWebLayerLoading, null, null);
+		}
+		else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - onPageStarted: no root fragment found");
+	}
 
-				executeToJSWaitingCalls();
-			}
-		};
+	@Override
+	protected void onPageFinished(String url) {
+		if (mRootFragment != null) {
+			mRootFragment.sendEvent(Cobalt.JSEventonWebLayerLoaded, null, null);
+		}
+		else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - onPageFinished: no root fragment found");
 
-		mWebView.setWebViewClient(webViewClient);
+		super.onPageFinished(url);
 	}
 
 	/***********************************************************************************************
@@ -0,0 +1,91 @@
+/**
+ *
+ * CobaltWebViewClient
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.fragments;
+
+import org.cobaltians.cobalt.metrics.CobaltTimeline;
+import org.cobaltians.cobalt.webkit.CobaltResourceInterceptors;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * WebViewClient of the Web views of {@link CobaltFragment}s.
+ * Forwards page loading to the fragment and lets the registered {@link CobaltResourceInterceptors} serve requests.
+ */
+public class CobaltWebViewClient extends WebViewClient {
+
+    protected final CobaltFragment mFragment;
+
+    public CobaltWebViewClient(CobaltFragment fragment) {
+        mFragment = fragment;
+    }
+
+    @Override
+    public void onPageStarted(WebView view, String url, Bitmap favicon) {
+        super.onPageStarted(view, url, favicon);
+        mFragment.prepareBridge(url);
+        mFragment.onPageStarted(url);
+    }
+
+    @Override
+    public void onPageFinished(WebView view, String url) {
+        super.onPageFinished(view, url);
+        mFragment.getTimeline().mark(CobaltTimeline.MILESTONE_PAGE_FINISH);
+        mFragment.onPageFinished(url);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+        // Only called before Lollipop, request headers are not available
+        return CobaltResourceInterceptors.intercept(mFragment, Uri.parse(url), Collections.<String, String>emptyMap());
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        // Interceptors serve resources, whose requests could not be replayed with their body
+        if (! "GET".equalsIgnoreCase(request.getMethod())) {
+            return null;
+        }
+
+        Map<String, String> requestHeaders = request.getRequestHeaders();
+        return CobaltResourceInterceptors.intercept(mFragment, request.getUrl(),
+                                                    requestHeaders != null ? requestHeaders : Collections.<String, String>emptyMap());
+    }
+}
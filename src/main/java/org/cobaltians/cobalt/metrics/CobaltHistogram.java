@@ -0,0 +1,142 @@
+/**
+ *
+ * CobaltHistogram
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.metrics;
+
+import java.util.Locale;
+
+/**
+ * Histogram of durations in milliseconds, with logarithmic buckets growing by 2^(1/4),
+ * so that percentiles are estimated within about 20% in constant memory however many values are recorded.
+ * Not thread-safe: the {@link CobaltMetrics} records under its lock and hands out copies.
+ */
+public final class CobaltHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    // Enough for about 18 hours
+    private static final int BUCKET_COUNT = 26 * BUCKETS_PER_DOUBLING;
+
+    private final long[] mBuckets;
+    private long mCount;
+    private double mSum;
+    private double mMin = Double.MAX_VALUE;
+    private double mMax;
+
+    CobaltHistogram() {
+        mBuckets = new long[BUCKET_COUNT];
+    }
+
+    CobaltHistogram(CobaltHistogram histogram) {
+        mBuckets = histogram.mBuckets.clone();
+        mCount = histogram.mCount;
+        mSum = histogram.mSum;
+        mMin = histogram.mMin;
+        mMax = histogram.mMax;
+    }
+
+    /**
+     * @param value: the duration, in milliseconds, negative values being ignored
+     */
+    void record(double value) {
+        if (value < 0
+            || Double.isNaN(value)) {
+            return;
+        }
+
+        mBuckets[getBucket(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the smallest recorded value, or 0 if none was recorded.
+     */
+    public double getMin() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    public double getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return the average of the recorded values, or 0 if none was recorded.
+     */
+    public double getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * Estimates the given percentile from the upper bound of the bucket containing it, within the recorded range.
+     * @param percentile: the percentile, between 0 and 100, 50 for the median
+     * @return the estimated value, or 0 if none was recorded
+     */
+    public double getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mCount));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets[i];
+            if (count >= rank) {
+                return Math.max(mMin, Math.min(mMax, getUpperBound(i)));
+            }
+        }
+
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "{count: %d, min: %.1fms, p50: %.1fms, p90: %.1fms, p99: %.1fms, max: %.1fms}",
+                             mCount, getMin(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    // Bucket i holds the values from 2^(i/4) - 1 to 2^((i+1)/4) - 1
+    private static int getBucket(double value) {
+        int bucket = (int) (BUCKETS_PER_DOUBLING * Math.log(value + 1) / Math.log(2));
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static double getUpperBound(int bucket) {
+        return Math.pow(2, (double) (bucket + 1) / BUCKETS_PER_DOUBLING) - 1;
+    }
+}
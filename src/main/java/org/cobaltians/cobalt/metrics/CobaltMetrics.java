@@ -0,0 +1,245 @@
+/**
+ *
+ * CobaltMetrics
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.metrics;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the loading times of the screens into {@link CobaltHistogram}s, per controller and page:
+ * the native milestones of their {@link CobaltTimeline}, named native:*, relative to the first one,
+ * and the Performance API entries reported by the Web layer with perf messages:
+ * {"type": "perf", "data": {"entries": [{"entryType": "paint", "name": "first-contentful-paint", "startTime": 120.5, "duration": 0}]}}
+ *
+ * Entries measuring a duration, like longtask, resource, navigation, measure and event, record their duration,
+ * the others, like paint and mark, their start time. Entries named after URLs, like resource, are aggregated by type only.
+ */
+public final class CobaltMetrics {
+
+    private static final String TAG = CobaltMetrics.class.getSimpleName();
+
+    public static final String METRIC_TIME_TO_READY = "native:timeToReady";
+    private static final String NATIVE_METRIC_PREFIX = "native:";
+
+    private static final String ENTRY_TYPE_LONG_TASK = "longtask";
+    private static final String ENTRY_TYPE_RESOURCE = "resource";
+    private static final String ENTRY_TYPE_NAVIGATION = "navigation";
+    private static final String ENTRY_TYPE_MEASURE = "measure";
+    private static final String ENTRY_TYPE_EVENT = "event";
+    private static final String ENTRY_TYPE_FIRST_INPUT = "first-input";
+    private static final String ENTRY_TYPE_LARGEST_CONTENTFUL_PAINT = "largest-contentful-paint";
+
+    // Bounds the memory used by misbehaving pages
+    private static final int MAX_METRICS_PER_SCREEN = 64;
+
+    private static CobaltMetrics sInstance;
+
+    // Histograms by metric, by screen. Guarded by this
+    private final HashMap<ScreenKey, HashMap<String, CobaltHistogram>> mScreens = new HashMap<>();
+
+    private CobaltMetrics() {
+
+    }
+
+    public static synchronized CobaltMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new CobaltMetrics();
+        }
+
+        return sInstance;
+    }
+
+    /*********************************************************
+     * RECORDING
+     *********************************************************/
+
+    /**
+     * Records the milestones of the given timeline, once the Web layer is ready.
+     * @param timeline: the complete timeline
+     */
+    void recordTimeline(CobaltTimeline timeline) {
+        Map<String, Long> milestones = timeline.getMilestones();
+        if (milestones.isEmpty()) {
+            return;
+        }
+
+        long start = milestones.values().iterator().next();
+        synchronized (this) {
+            HashMap<String, CobaltHistogram> histograms = getHistograms(timeline.getController(), timeline.getPage());
+            for (Map.Entry<String, Long> milestone : milestones.entrySet()) {
+                record(histograms, NATIVE_METRIC_PREFIX + milestone.getKey(), (milestone.getValue() - start) / 1000000.0);
+            }
+            record(histograms, METRIC_TIME_TO_READY, timeline.getTimeToReadyNanos() / 1000000.0);
+        }
+    }
+
+    /**
+     * Records the given batch of Performance API entries, serialized with PerformanceEntry.toJSON().
+     * @param controller: the controller of the screen
+     * @param page: the page of the screen
+     * @param entries: the entries
+     */
+    public void recordPerformanceEntries(String controller, String page, JSONArray entries) {
+        synchronized (this) {
+            HashMap<String, CobaltHistogram> histograms = getHistograms(controller, page);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.optJSONObject(i);
+                String entryType = entry != null ? entry.optString(Cobalt.kJSPerfEntryType, null) : null;
+                if (entryType == null) {
+                    if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - recordPerformanceEntries: entry " + i + " has no " + Cobalt.kJSPerfEntryType + ".");
+                    continue;
+                }
+
+                String name = entry.optString(Cobalt.kJSPerfName, "");
+                double startTime = entry.optDouble(Cobalt.kJSPerfStartTime, -1);
+                double duration = entry.optDouble(Cobalt.kJSPerfDuration, -1);
+
+                switch (entryType) {
+                    case ENTRY_TYPE_RESOURCE:
+                    case ENTRY_TYPE_NAVIGATION:
+                    case ENTRY_TYPE_LONG_TASK:
+                        // Named after URLs or frames
+                        record(histograms, entryType, duration);
+                        break;
+                    case ENTRY_TYPE_LARGEST_CONTENTFUL_PAINT:
+                        record(histograms, entryType, startTime);
+                        break;
+                    case ENTRY_TYPE_MEASURE:
+                    case ENTRY_TYPE_EVENT:
+                    case ENTRY_TYPE_FIRST_INPUT:
+                        record(histograms, entryType + ":" + name, duration);
+                        break;
+                    default:
+                        record(histograms, entryType + ":" + name, startTime);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public synchronized void reset() {
+        mScreens.clear();
+    }
+
+    /*********************************************************
+     * GETTERS
+     *********************************************************/
+
+    /**
+     * @return a snapshot of the histograms of every screen.
+     */
+    public synchronized List<CobaltScreenMetrics> getScreenMetrics() {
+        ArrayList<CobaltScreenMetrics> screenMetrics = new ArrayList<>(mScreens.size());
+        for (Map.Entry<ScreenKey, HashMap<String, CobaltHistogram>> screen : mScreens.entrySet()) {
+            screenMetrics.add(new CobaltScreenMetrics(screen.getKey().mController, screen.getKey().mPage, screen.getValue()));
+        }
+        return screenMetrics;
+    }
+
+    /**
+     * @return a snapshot of the histograms of the given screen, or null if nothing was recorded for it.
+     */
+    public synchronized CobaltScreenMetrics getScreenMetrics(String controller, String page) {
+        HashMap<String, CobaltHistogram> histograms = mScreens.get(new ScreenKey(controller, page));
+        return histograms != null ? new CobaltScreenMetrics(controller, page, histograms) : null;
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    /**
+     * Must be called holding the lock.
+     */
+    private HashMap<String, CobaltHistogram> getHistograms(String controller, String page) {
+        ScreenKey key = new ScreenKey(controller, page);
+        HashMap<String, CobaltHistogram> histograms = mScreens.get(key);
+        if (histograms == null) {
+            histograms = new HashMap<>();
+            mScreens.put(key, histograms);
+        }
+        return histograms;
+    }
+
+    private static void record(HashMap<String, CobaltHistogram> histograms, String metric, double value) {
+        if (value < 0) {
+            return;
+        }
+
+        CobaltHistogram histogram = histograms.get(metric);
+        if (histogram == null) {
+            if (histograms.size() >= MAX_METRICS_PER_SCREEN) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - record: too many metrics, dropping " + metric + ".");
+                return;
+            }
+            histogram = new CobaltHistogram();
+            histograms.put(metric, histogram);
+        }
+        histogram.record(value);
+    }
+
+    private static final class ScreenKey {
+        private final String mController;
+        private final String mPage;
+
+        ScreenKey(String controller, String page) {
+            mController = controller;
+            mPage = page;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (! (object instanceof ScreenKey)) {
+                return false;
+            }
+
+            ScreenKey key = (ScreenKey) object;
+            return (mController != null ? mController.equals(key.mController) : key.mController == null)
+                   && (mPage != null ? mPage.equals(key.mPage) : key.mPage == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (mController != null ? mController.hashCode() : 0) + (mPage != null ? mPage.hashCode() : 0);
+        }
+    }
+}
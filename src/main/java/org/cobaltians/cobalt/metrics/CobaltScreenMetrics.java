@@ -0,0 +1,91 @@
+/**
+ *
+ * CobaltScreenMetrics
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the histograms of a screen, identified by its controller and page, collected by the {@link CobaltMetrics}.
+ */
+public final class CobaltScreenMetrics {
+
+    private final String mController;
+    private final String mPage;
+    private final Map<String, CobaltHistogram> mHistograms;
+
+    CobaltScreenMetrics(String controller, String page, Map<String, CobaltHistogram> histograms) {
+        mController = controller;
+        mPage = page;
+
+        TreeMap<String, CobaltHistogram> copies = new TreeMap<>();
+        for (Map.Entry<String, CobaltHistogram> histogram : histograms.entrySet()) {
+            copies.put(histogram.getKey(), new CobaltHistogram(histogram.getValue()));
+        }
+        mHistograms = Collections.unmodifiableMap(copies);
+    }
+
+    public String getController() {
+        return mController;
+    }
+
+    public String getPage() {
+        return mPage;
+    }
+
+    /**
+     * @return the histograms by metric name, like native:timeToReady or paint:first-contentful-paint, sorted by name.
+     */
+    public Map<String, CobaltHistogram> getHistograms() {
+        return mHistograms;
+    }
+
+    /**
+     * @return the histogram of the given metric, or null if it was never recorded for this screen.
+     */
+    public CobaltHistogram getHistogram(String metric) {
+        return mHistograms.get(metric);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder(mController + " " + mPage + " {");
+        boolean first = true;
+        for (Map.Entry<String, CobaltHistogram> histogram : mHistograms.entrySet()) {
+            if (! first) {
+                description.append(", ");
+            }
+            description.append(histogram.getKey()).append(": ").append(histogram.getValue());
+            first = false;
+        }
+        return description.append("}").toString();
+    }
+}
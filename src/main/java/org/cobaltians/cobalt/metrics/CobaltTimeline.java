@@ -0,0 +1,273 @@
+/**
+ *
+ * CobaltTimeline
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.metrics;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Timeline of the loading of a screen: monotonic timestamps, from {@link System#nanoTime()}, of its milestones,
+ * from the navigation to the screen until the Web layer is ready. Each milestone is recorded once, the first time it is reached.
+ *
+ * Listeners registered with {@link #addListener(OnMilestoneListener)} receive every milestone of every screen,
+ * and Trace sections named after the milestones may be enabled with {@link #setTraceEnabled(boolean)} from Jelly Bean MR2.
+ */
+public final class CobaltTimeline {
+
+    private static final String TAG = CobaltTimeline.class.getSimpleName();
+
+    /**
+     * Navigation to the screen, when its intent was created by Cobalt
+     */
+    public static final String MILESTONE_NAVIGATION = "navigation";
+    /**
+     * Creation of the activity of the screen
+     */
+    public static final String MILESTONE_ACTIVITY_CREATE = "activityCreate";
+    /**
+     * Web view added to the fragment
+     */
+    public static final String MILESTONE_WEB_VIEW_ADD = "webViewAdd";
+    /**
+     * Page load requested in the Web view
+     */
+    public static final String MILESTONE_CONTENT_LOAD = "contentLoad";
+    /**
+     * Page loaded by the Web view
+     */
+    public static final String MILESTONE_PAGE_FINISH = "pageFinish";
+    /**
+     * Cobalt Web layer ready to exchange messages, the last milestone
+     */
+    public static final String MILESTONE_COBALT_READY = "cobaltReady";
+
+    private static final String TRACE_SECTION_PREFIX = "Cobalt:";
+
+    private static final CopyOnWriteArrayList<OnMilestoneListener> sListeners = new CopyOnWriteArrayList<>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static volatile boolean sTraceEnabled;
+
+    /**
+     * Listener of the milestones of every screen, called on the main thread.
+     */
+    public interface OnMilestoneListener {
+        /**
+         * @param timeline: the timeline of the screen
+         * @param milestone: the reached milestone
+         */
+        void onMilestone(CobaltTimeline timeline, String milestone);
+    }
+
+    private final String mController;
+    private final String mPage;
+    // Guarded by this
+    private final LinkedHashMap<String, Long> mMilestones = new LinkedHashMap<>();
+
+    /**
+     * @param controller: the controller of the screen
+     * @param page: the page of the screen
+     */
+    public CobaltTimeline(String controller, String page) {
+        mController = controller;
+        mPage = page;
+    }
+
+    /*********************************************************
+     * LISTENERS
+     *********************************************************/
+
+    public static void addListener(OnMilestoneListener listener) {
+        if (listener != null) {
+            sListeners.addIfAbsent(listener);
+        }
+        else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - addListener: listener could not be null!");
+    }
+
+    public static void removeListener(OnMilestoneListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Enables Trace sections around the loading steps of the screens and at each milestone, visible in systrace.
+     * @param enabled: true to enable the sections, ignored before Jelly Bean MR2
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        sTraceEnabled = enabled;
+    }
+
+    /*********************************************************
+     * RECORDING
+     *********************************************************/
+
+    /**
+     * Records the given milestone now, unless already reached.
+     * @param milestone: the milestone
+     */
+    public void mark(String milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    /**
+     * Records the given milestone at the given time, unless already reached.
+     * @param milestone: the milestone
+     * @param timeNanos: the time of the milestone, from {@link System#nanoTime()}
+     */
+    public void mark(final String milestone, long timeNanos) {
+        synchronized (this) {
+            if (mMilestones.containsKey(milestone)) {
+                return;
+            }
+            mMilestones.put(milestone, timeNanos);
+        }
+
+        if (MILESTONE_COBALT_READY.equals(milestone)) {
+            CobaltMetrics.getInstance().recordTimeline(this);
+        }
+
+        if (sTraceEnabled) {
+            // Zero-length section marking the milestone
+            beginSection(milestone);
+            endSection();
+        }
+
+        if (! sListeners.isEmpty()) {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnMilestoneListener listener : sListeners) {
+                        listener.onMilestone(CobaltTimeline.this, milestone);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Begins a Trace section named after the given step, if enabled. Must be ended on the same thread.
+     * @param step: the step name
+     */
+    @SuppressLint("NewApi")
+    public static void beginSection(String step) {
+        if (sTraceEnabled
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(TRACE_SECTION_PREFIX + step);
+        }
+    }
+
+    /**
+     * Ends the last Trace section begun on this thread, if enabled.
+     */
+    @SuppressLint("NewApi")
+    public static void endSection() {
+        if (sTraceEnabled
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /*********************************************************
+     * GETTERS
+     *********************************************************/
+
+    public String getController() {
+        return mController;
+    }
+
+    public String getPage() {
+        return mPage;
+    }
+
+    /**
+     * @return the time of the given milestone, from {@link System#nanoTime()}, or -1 if not reached.
+     */
+    public synchronized long getTime(String milestone) {
+        Long time = mMilestones.get(milestone);
+        return time != null ? time : -1;
+    }
+
+    /**
+     * @return the time elapsed between the given milestones, in nanoseconds, or -1 if one was not reached.
+     */
+    public synchronized long getDuration(String fromMilestone, String toMilestone) {
+        Long from = mMilestones.get(fromMilestone);
+        Long to = mMilestones.get(toMilestone);
+        return from != null && to != null ? to - from : -1;
+    }
+
+    /**
+     * @return the time elapsed from the first milestone, the navigation to the screen if it was navigated to by Cobalt,
+     * until the Web layer is ready, in nanoseconds, or -1 if not ready yet.
+     */
+    public synchronized long getTimeToReadyNanos() {
+        Long ready = mMilestones.get(MILESTONE_COBALT_READY);
+        return ready != null ? ready - mMilestones.values().iterator().next() : -1;
+    }
+
+    /**
+     * @return true once the Web layer is ready.
+     */
+    public synchronized boolean isComplete() {
+        return mMilestones.containsKey(MILESTONE_COBALT_READY);
+    }
+
+    /**
+     * @return a copy of the reached milestones and their times, in the order they were recorded.
+     */
+    public synchronized Map<String, Long> getMilestones() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mMilestones));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder description = new StringBuilder(mController + " " + mPage + " {");
+        Long start = null;
+        for (Map.Entry<String, Long> milestone : mMilestones.entrySet()) {
+            if (start == null) {
+                start = milestone.getValue();
+            }
+            else {
+                description.append(", ");
+            }
+            description.append(milestone.getKey()).append(": +").append((milestone.getValue() - start) / 1000000).append("ms");
+        }
+        return description.append("}").toString();
+    }
+}
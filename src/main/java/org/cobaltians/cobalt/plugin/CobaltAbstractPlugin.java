@@ -29,16 +29,58 @@
 
 package org.cobaltians.cobalt.plugin;
 
-import java.util.Vector;
+import android.support.annotation.IntDef;
 
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * 
+ * Base class of plugins declared in the plugins field of cobalt.conf.
+ * Inherited classes are singletons exposing a static getInstance(CobaltPluginWebContainer) method,
+ * called for each message. Plugins flagged with "preload": true in cobalt.conf are instantiated in background at startup
+ * by calling their static getInstance() method if declared, or getInstance(CobaltPluginWebContainer) with a null container.
  * @author Sébastien Famel
  */
 public abstract class CobaltAbstractPlugin {
 
+	// TAG
+	private static final String TAG = CobaltAbstractPlugin.class.getSimpleName();
+
+	/*******************************************************************************************************
+	 * EXECUTION THREADS
+	 *******************************************************************************************************/
+
+	/**
+	 * Messages are executed on the UI thread. Default behavior.
+	 */
+	public static final int THREAD_UI = 0;
+	/**
+	 * Messages are executed concurrently on a bounded background thread pool shared by all plugins.
+	 */
+	public static final int THREAD_BACKGROUND = 1;
+	/**
+	 * Messages are executed one at a time, in the order they were received, on the shared background thread pool.
+	 */
+	public static final int THREAD_SERIAL = 2;
+	/**
+	 * Messages are executed synchronously on the JavaBridge thread which received them.
+	 * Only suitable for plugins doing very short work, as the Web view waits for onMessage to return.
+	 */
+	public static final int THREAD_BRIDGE = 3;
+
+	@IntDef({THREAD_UI, THREAD_BACKGROUND, THREAD_SERIAL, THREAD_BRIDGE})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface ExecutionThread {}
+
     /*******************************************************************************************************
      * MEMBERS
      *******************************************************************************************************/
@@ -46,28 +88,118 @@ public abstract class CobaltAbstractPlugin {
 	//protected static CobaltAbstractPlugin sInstance;
 	
 	/**
-	 * {@link Vector} containing all {@link CobaltPluginWebContainer}s which sent at least one message to this {@link CobaltAbstractPlugin} inherited singleton.
+	 * {@link CobaltPluginWebContainer}s which sent at least one message to this {@link CobaltAbstractPlugin} inherited singleton
+	 * and have not been destroyed yet.
 	 */
-	protected Vector<CobaltPluginWebContainer> mWebContainerVector = new Vector<CobaltPluginWebContainer>();
+	private final CobaltWebContainerSet mWebContainers = new CobaltWebContainerSet();
+
+	/**
+	 * Name of this plugin as declared in cobalt.conf, set by the {@link CobaltPluginManager} when it first dispatches a message to it.
+	 */
+	private volatile String mName;
 
 	/*******************************************************************************
      * METHODS
      *******************************************************************************/
     
 	/**
-	 * Add the specified {@link CobaltPluginWebContainer} at the end of {@link #mWebContainerVector} if absent.
-	 * @param webContainer the CobaltPluginWebContainer to add to {@link #mWebContainerVector}.
-	 * @return true if webContainer was absent from {@link #mWebContainerVector}, false otherwise.
+	 * Adds the specified {@link CobaltPluginWebContainer} to the containers of this plugin if its fragment is absent.
+	 * If its fragment is already present, its entry is updated with the specified container.
+	 * @param webContainer the CobaltPluginWebContainer to add.
+	 * @return true if the webContainer fragment was absent, false otherwise.
 	 */
 	public final boolean addWebContainer(CobaltPluginWebContainer webContainer) {
-    	if (! mWebContainerVector.contains(webContainer)) {
-    		mWebContainerVector.addElement(webContainer);
-    		
-    		return true;
-    	}
-    	
-    	return false;
-    }
+		return webContainer != null
+			   && mWebContainers.add(webContainer);
+	}
+
+	/**
+	 * Removes the {@link CobaltPluginWebContainer} of the specified fragment from the containers of this plugin.
+	 * Called by the {@link CobaltPluginManager} when the fragment is destroyed.
+	 * @param fragment the destroyed fragment.
+	 * @return the removed container, or null if the fragment never sent a message to this plugin.
+	 */
+	final CobaltPluginWebContainer removeWebContainer(CobaltFragment fragment) {
+		return mWebContainers.remove(fragment);
+	}
+
+	/**
+	 * Returns the {@link CobaltPluginWebContainer}s which sent at least one message to this plugin and are still alive.
+	 * @return a snapshot which may be iterated from any thread.
+	 */
+	public final List<CobaltPluginWebContainer> getWebContainers() {
+		return mWebContainers.snapshot();
+	}
+
+	/**
+	 * @return the name of this plugin as declared in cobalt.conf, or null if it has not received any message yet.
+	 */
+	public final String getName() {
+		return mName;
+	}
+
+	final void setName(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Sends the specified data to every live {@link CobaltPluginWebContainer} of this plugin, as a plugin message without callback.
+	 * The message is serialized once and added to the outgoing queue of each fragment, so it is delivered as soon as each page is ready.
+	 * Detached fragments are skipped.
+	 * May be called from any thread.
+	 * @param data the data to send.
+	 * @return the number of pages the message was sent to.
+	 */
+	public final int broadcast(JSONObject data) {
+		if (mName == null) {
+			if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - broadcast: " + getClass().getSimpleName() + " has not received any message yet, its name is unknown.");
+			return 0;
+		}
+
+		String serializedMessage;
+		try {
+			JSONObject message = new JSONObject();
+			message.put(Cobalt.kJSType, Cobalt.JSTypePlugin);
+			message.put(Cobalt.kJSPluginName, mName);
+			message.put(Cobalt.kJSData, data);
+			serializedMessage = CobaltFragment.serializeMessage(message);
+		}
+		catch (JSONException exception) {
+			if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - broadcast: JSONException");
+			exception.printStackTrace();
+			return 0;
+		}
+
+		int reachedPagesCount = 0;
+		for (CobaltPluginWebContainer webContainer : mWebContainers.snapshot()) {
+			CobaltFragment fragment = webContainer.getFragment();
+			if (fragment != null
+				&& fragment.isAdded()) {
+				fragment.sendSerializedMessage(serializedMessage);
+				reachedPagesCount++;
+			}
+		}
+
+		return reachedPagesCount;
+	}
+
+	/**
+	 * Called when the fragment of a {@link CobaltPluginWebContainer} which sent a message to this plugin is destroyed.
+	 * Called on the thread returned by {@link #getExecutionThread()}.
+	 * This method may be overridden in subclasses to release resources kept for this container.
+	 * @param webContainer the destroyed container. Its fragment and activity may already have been garbage collected.
+	 */
+	public void onWebContainerDestroyed(CobaltPluginWebContainer webContainer) { }
+
+	/**
+	 * Returns the thread on which {@link #onMessage(CobaltPluginWebContainer, JSONObject)} is called.
+	 * This method may be overridden in subclasses. Its result must not change over the plugin lifetime.
+	 * @return one of {@link #THREAD_UI}, {@link #THREAD_BACKGROUND}, {@link #THREAD_SERIAL} or {@link #THREAD_BRIDGE}.
+	 */
+	@ExecutionThread
+	public int getExecutionThread() {
+		return THREAD_UI;
+	}
 
     /*****************************************************************************************
      * ABSTRACT METHODS
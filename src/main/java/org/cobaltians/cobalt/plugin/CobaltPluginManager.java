@@ -34,12 +34,25 @@ import org.cobaltians.cobalt.fragments.CobaltFragment;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -49,6 +62,12 @@ public final class CobaltPluginManager {
 	// TAG
 	private static final String TAG = CobaltPluginManager.class.getSimpleName();
 	private static final String GET_INSTANCE_METHOD_NAME = "getInstance";
+
+	// BACKGROUND THREAD POOL
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	private static final int BACKGROUND_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+	private static final int BACKGROUND_QUEUE_CAPACITY = 128;
+	private static final int BACKGROUND_KEEP_ALIVE_SECONDS = 30;
 	
 	/********************************************************************************
      * MEMBERS
@@ -58,17 +77,32 @@ public final class CobaltPluginManager {
 	
 	private final Context mContext;
 	private final HashMap<String, Class<? extends CobaltAbstractPlugin>> mPluginsMap;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final ThreadPoolExecutor mBackgroundExecutor;
+	private final ConcurrentHashMap<String, Executor> mSerialExecutors = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CobaltPluginMetrics> mMetrics = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CobaltAbstractPlugin> mPluginInstances = new ConcurrentHashMap<>();
 	
 	/******************************************************************************
      * CONSTRUCTORS
      ******************************************************************************/
 	
 	private CobaltPluginManager(Context context) {
-		mContext = context;
+		mContext = context.getApplicationContext();
 		mPluginsMap = Cobalt.getInstance(mContext).getPlugins();
+
+		mBackgroundExecutor = new ThreadPoolExecutor(BACKGROUND_POOL_SIZE, BACKGROUND_POOL_SIZE,
+													 BACKGROUND_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+													 new LinkedBlockingQueue<Runnable>(BACKGROUND_QUEUE_CAPACITY),
+													 new BackgroundThreadFactory(),
+													 // When the pool is saturated, the JavaBridge thread runs the message itself,
+													 // which slows down the Web view instead of dropping messages.
+													 new ThreadPoolExecutor.CallerRunsPolicy());
+		mBackgroundExecutor.allowCoreThreadTimeOut(true);
 	}
 	
-	public static CobaltPluginManager getInstance(Context context) {
+	public static synchronized CobaltPluginManager getInstance(Context context) {
 		if (sInstance == null) {
 			sInstance = new CobaltPluginManager(context);
 		}
@@ -83,15 +117,23 @@ public final class CobaltPluginManager {
 	public boolean onMessage(Context context, CobaltFragment fragment, final JSONObject message) {
 		try {
 			String pluginName = message.getString(Cobalt.kJSPluginName);
+
+			// Cancellations of streams are handled here so that plugins do not have to route them
+			if (Cobalt.JSActionCancelStream.equals(message.optString(Cobalt.kJSAction, null))
+				&& CobaltPluginStream.cancel(fragment, message.optString(Cobalt.kJSCallback, null))) {
+				return true;
+			}
+
 			Class<? extends CobaltAbstractPlugin> pluginClass = mPluginsMap.get(pluginName);
 			if (pluginClass != null) {
 				try {
 					Method pluginGetInstanceMethod = pluginClass.getDeclaredMethod(GET_INSTANCE_METHOD_NAME, CobaltPluginWebContainer.class);
 					try {
 						final CobaltPluginWebContainer webContainer = new CobaltPluginWebContainer((Activity) context, fragment);
-						final CobaltAbstractPlugin plugin = (CobaltAbstractPlugin) pluginGetInstanceMethod.invoke(null, webContainer);
+						final CobaltAbstractPlugin plugin = getPluginInstance(pluginName, pluginClass, pluginGetInstanceMethod, false, webContainer);
+						plugin.addWebContainer(webContainer);
 
-						((Activity) mContext).runOnUiThread(new Runnable() {
+						dispatch(pluginName, plugin, new Runnable() {
 							@Override
 							public void run() {
 								plugin.onMessage(webContainer, message);
@@ -135,10 +177,253 @@ public final class CobaltPluginManager {
 		return false;
 	}
 	
+	/**
+	 * Instantiates the plugins flagged with preload in cobalt.conf which are not instantiated yet.
+	 * Called on a background thread once {@link Cobalt} first reads cobalt.conf, other plugins are instantiated on their first message.
+	 * Their getInstance(CobaltPluginWebContainer) method is called with a null container, unless they declare a getInstance() method.
+	 */
+	public void preloadPlugins() {
+		for (String pluginName : Cobalt.getInstance(mContext).getPluginsToPreload()) {
+			Class<? extends CobaltAbstractPlugin> pluginClass = mPluginsMap.get(pluginName);
+			if (pluginClass == null
+				|| mPluginInstances.containsKey(pluginName)) {
+				continue;
+			}
+
+			try {
+				Method pluginGetInstanceMethod;
+				Object[] arguments;
+				try {
+					pluginGetInstanceMethod = pluginClass.getDeclaredMethod(GET_INSTANCE_METHOD_NAME);
+					arguments = new Object[0];
+				}
+				catch (NoSuchMethodException exception) {
+					pluginGetInstanceMethod = pluginClass.getDeclaredMethod(GET_INSTANCE_METHOD_NAME, CobaltPluginWebContainer.class);
+					arguments = new Object[] {null};
+				}
+
+				getPluginInstance(pluginName, pluginClass, pluginGetInstanceMethod, true, arguments);
+				if (Cobalt.DEBUG) Log.i(TAG, "preloadPlugins: " + getMetrics(pluginName));
+			}
+			catch (NoSuchMethodException exception) {
+				if (Cobalt.DEBUG) {
+					Log.e(TAG, "preloadPlugins: no method found matching " + pluginClass.getSimpleName() + ".getInstance().");
+					exception.printStackTrace();
+				}
+			}
+			catch (Exception exception) {
+				if (Cobalt.DEBUG) {
+					Log.e(TAG, "preloadPlugins: unable to instantiate " + pluginClass.getSimpleName() + ".");
+					exception.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the dispatch metrics of the specified plugin.
+	 * @param pluginName the plugin name as declared in cobalt.conf.
+	 * @return the plugin metrics, or null if the plugin has not been instantiated yet.
+	 */
+	public CobaltPluginMetrics getMetrics(String pluginName) {
+		return mMetrics.get(pluginName);
+	}
+
+	/**
+	 * @return a snapshot of the dispatch metrics of every plugin instantiated so far.
+	 */
+	public List<CobaltPluginMetrics> getMetrics() {
+		return new ArrayList<>(mMetrics.values());
+	}
+
+	/**
+	 * Cancels the {@link CobaltPluginStream}s opened for the specified fragment,
+	 * removes it from the containers of every plugin instantiated so far
+	 * and notifies those it had sent messages to with {@link CobaltAbstractPlugin#onWebContainerDestroyed(CobaltPluginWebContainer)}.
+	 * @param context the activity hosting the fragment.
+	 * @param fragment the destroyed fragment.
+	 */
 	public void onFragmentDestroyed(Context context, CobaltFragment fragment) {
-		Collection<Class <? extends CobaltAbstractPlugin>> pluginClasses = mPluginsMap.values();
-		for (Class <? extends CobaltAbstractPlugin> pluginClass : pluginClasses) {
-			
+		CobaltPluginStream.cancelAll(fragment);
+
+		for (Map.Entry<String, CobaltAbstractPlugin> pluginEntry : mPluginInstances.entrySet()) {
+			final CobaltAbstractPlugin plugin = pluginEntry.getValue();
+			final CobaltPluginWebContainer webContainer = plugin.removeWebContainer(fragment);
+			if (webContainer != null) {
+				dispatch(pluginEntry.getKey(), plugin, new Runnable() {
+					@Override
+					public void run() {
+						plugin.onWebContainerDestroyed(webContainer);
+					}
+				});
+			}
+		}
+	}
+
+	/****************************************************************************************************************************************
+	 * DISPATCH
+	 ****************************************************************************************************************************************/
+
+	/**
+	 * Invokes the getInstance method of the specified plugin class and records the time taken by its first invocation.
+	 * Invocations are serialized per plugin class, so that a plugin preloaded in background and receiving its first message
+	 * at the same time is only instantiated once.
+	 */
+	private CobaltAbstractPlugin getPluginInstance(String pluginName, Class<? extends CobaltAbstractPlugin> pluginClass,
+												   Method pluginGetInstanceMethod, boolean preload, Object... arguments)
+			throws IllegalAccessException, InvocationTargetException {
+		synchronized (pluginClass) {
+			boolean instantiated = mPluginInstances.containsKey(pluginName);
+
+			long start = System.nanoTime();
+			CobaltAbstractPlugin plugin = (CobaltAbstractPlugin) pluginGetInstanceMethod.invoke(null, arguments);
+			long duration = System.nanoTime() - start;
+
+			if (! instantiated) {
+				plugin.setName(pluginName);
+				mPluginInstances.put(pluginName, plugin);
+				getOrCreateMetrics(pluginName).onInstantiated(duration, preload);
+			}
+
+			return plugin;
+		}
+	}
+
+	/**
+	 * Runs the specified task on the thread declared by the plugin with {@link CobaltAbstractPlugin#getExecutionThread()}.
+	 * @param pluginName the plugin name, used to look up its metrics and serial executor.
+	 * @param plugin the plugin executing the task.
+	 * @param task the task to run.
+	 */
+	private void dispatch(String pluginName, CobaltAbstractPlugin plugin, Runnable task) {
+		final CobaltPluginMetrics metrics = getOrCreateMetrics(pluginName);
+		Runnable measuredTask = new MeasuredRunnable(task, metrics);
+
+		metrics.onQueued();
+
+		switch (plugin.getExecutionThread()) {
+			case CobaltAbstractPlugin.THREAD_BRIDGE:
+				measuredTask.run();
+				break;
+			case CobaltAbstractPlugin.THREAD_BACKGROUND:
+				mBackgroundExecutor.execute(measuredTask);
+				break;
+			case CobaltAbstractPlugin.THREAD_SERIAL:
+				getOrCreateSerialExecutor(pluginName).execute(measuredTask);
+				break;
+			case CobaltAbstractPlugin.THREAD_UI:
+			default:
+				mMainHandler.post(measuredTask);
+				break;
+		}
+	}
+
+	private CobaltPluginMetrics getOrCreateMetrics(String pluginName) {
+		CobaltPluginMetrics metrics = mMetrics.get(pluginName);
+		if (metrics == null) {
+			CobaltPluginMetrics newMetrics = new CobaltPluginMetrics(pluginName);
+			metrics = mMetrics.putIfAbsent(pluginName, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+
+		return metrics;
+	}
+
+	private Executor getOrCreateSerialExecutor(String pluginName) {
+		Executor executor = mSerialExecutors.get(pluginName);
+		if (executor == null) {
+			Executor newExecutor = new SerialExecutor(mBackgroundExecutor);
+			executor = mSerialExecutors.putIfAbsent(pluginName, newExecutor);
+			if (executor == null) {
+				executor = newExecutor;
+			}
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Wraps a plugin task to update its plugin metrics.
+	 */
+	private static final class MeasuredRunnable implements Runnable {
+
+		private final Runnable mTask;
+		private final CobaltPluginMetrics mMetrics;
+
+		MeasuredRunnable(Runnable task, CobaltPluginMetrics metrics) {
+			mTask = task;
+			mMetrics = metrics;
+		}
+
+		@Override
+		public void run() {
+			mMetrics.onDequeued();
+
+			long start = System.nanoTime();
+			try {
+				mTask.run();
+			}
+			finally {
+				mMetrics.onExecuted(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * {@link Executor} running its tasks one at a time in submission order on a delegate executor.
+	 */
+	private static final class SerialExecutor implements Executor {
+
+		private final Executor mDelegate;
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+		private Runnable mActive;
+
+		SerialExecutor(Executor delegate) {
+			mDelegate = delegate;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable task) {
+			mTasks.offer(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					}
+					finally {
+						scheduleNext();
+					}
+				}
+			});
+
+			if (mActive == null) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			mActive = mTasks.poll();
+			if (mActive != null) {
+				mDelegate.execute(mActive);
+			}
+		}
+	}
+
+	private static final class BackgroundThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "CobaltPlugin #" + mCount.getAndIncrement());
 		}
 	}
 }
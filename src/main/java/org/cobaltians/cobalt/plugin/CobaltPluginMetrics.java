@@ -0,0 +1,174 @@
+/**
+ *
+ * CobaltPluginMetrics
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.plugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe dispatch statistics of a plugin, collected by the {@link CobaltPluginManager}.
+ * Queue depth counts messages dispatched to the plugin but not yet executed.
+ */
+public final class CobaltPluginMetrics {
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final String mPluginName;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mTotalExecutionTime = new AtomicLong();
+    private final AtomicLong mMaxExecutionTime = new AtomicLong();
+
+    private volatile long mInitTime = -1;
+    private volatile boolean mPreloaded;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    CobaltPluginMetrics(String pluginName) {
+        mPluginName = pluginName;
+    }
+
+    /*********************************************************
+     * RECORDING
+     *********************************************************/
+
+    void onInstantiated(long durationNanos, boolean preloaded) {
+        mInitTime = durationNanos;
+        mPreloaded = preloaded;
+    }
+
+    void onQueued() {
+        int depth = mQueueDepth.incrementAndGet();
+
+        int maxDepth;
+        do {
+            maxDepth = mMaxQueueDepth.get();
+        }
+        while (depth > maxDepth
+               && ! mMaxQueueDepth.compareAndSet(maxDepth, depth));
+    }
+
+    void onDequeued() {
+        mQueueDepth.decrementAndGet();
+    }
+
+    void onExecuted(long durationNanos) {
+        mMessageCount.incrementAndGet();
+        mTotalExecutionTime.addAndGet(durationNanos);
+
+        long maxDuration;
+        do {
+            maxDuration = mMaxExecutionTime.get();
+        }
+        while (durationNanos > maxDuration
+               && ! mMaxExecutionTime.compareAndSet(maxDuration, durationNanos));
+    }
+
+    /************************************
+     * GETTERS
+     ************************************/
+
+    public String getPluginName() {
+        return mPluginName;
+    }
+
+    /**
+     * @return the time taken by the first call to the plugin getInstance method, in nanoseconds, or -1 if it was not measured.
+     */
+    public long getInitTimeNanos() {
+        return mInitTime;
+    }
+
+    /**
+     * @return true if the plugin was instantiated in background because it is flagged with preload in cobalt.conf.
+     */
+    public boolean isPreloaded() {
+        return mPreloaded;
+    }
+
+    /**
+     * @return the number of messages dispatched to the plugin which have not been executed yet.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return the highest queue depth observed since the plugin received its first message.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return the number of messages executed by the plugin.
+     */
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    /**
+     * @return the cumulated time spent in the plugin onMessage method, in nanoseconds.
+     */
+    public long getTotalExecutionTimeNanos() {
+        return mTotalExecutionTime.get();
+    }
+
+    /**
+     * @return the longest time spent in the plugin onMessage method, in nanoseconds.
+     */
+    public long getMaxExecutionTimeNanos() {
+        return mMaxExecutionTime.get();
+    }
+
+    /**
+     * @return the average time spent in the plugin onMessage method, in nanoseconds, or 0 if no message was executed yet.
+     */
+    public long getAverageExecutionTimeNanos() {
+        long messageCount = mMessageCount.get();
+        return messageCount > 0 ? mTotalExecutionTime.get() / messageCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return mPluginName + " {init: " + getInitTimeNanos() / 1000 + "µs" + (isPreloaded() ? " (preloaded)" : "")
+                + ", messages: " + getMessageCount()
+                + ", queue depth: " + getQueueDepth()
+                + ", max queue depth: " + getMaxQueueDepth()
+                + ", average execution: " + getAverageExecutionTimeNanos() / 1000 + "µs"
+                + ", max execution: " + getMaxExecutionTimeNanos() / 1000 + "µs}";
+    }
+}
@@ -0,0 +1,376 @@
+/**
+ *
+ * CobaltPluginStream
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.plugin;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Response channel allowing a plugin to call a Web callback several times for a single request,
+ * to report progress or send a large result in chunks.
+ *
+ * Each call is sent as a callback message with an additional stream field:
+ * {"type": "callback", "callback": callbackId, "data": data, "stream": {"state": "chunk"|"complete"|"error", "index": n}}.
+ * The stream is closed once {@link #complete(JSONObject)} or {@link #error(String)} is called, when the Web cancels it
+ * with {"type": "plugin", "name": pluginName, "action": "cancelStream", "callback": callbackId},
+ * or when its fragment is destroyed.
+ *
+ * Chunks are added to the outgoing queue of the fragment, which is flushed to the Web view on the UI thread.
+ * Plugins producing many chunks should respect backpressure: wait with {@link #awaitWritable(long)} from a background thread,
+ * or check {@link #isWritable()} and retry later from the UI thread.
+ *
+ * All methods may be called from any thread.
+ */
+public final class CobaltPluginStream {
+
+    // TAG
+    private static final String TAG = CobaltPluginStream.class.getSimpleName();
+
+    /**
+     * Default number of outgoing messages of the fragment above which the stream is not writable.
+     */
+    public static final int DEFAULT_HIGH_WATER_MARK = 16;
+
+    /**
+     * Open streams by fragment and callback, used to route cancellations from the Web.
+     */
+    private static final ConcurrentHashMap<StreamKey, CobaltPluginStream> sOpenStreams = new ConcurrentHashMap<>();
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final CobaltPluginWebContainer mWebContainer;
+    private final String mCallbackId;
+    private final StreamKey mKey;
+
+    private volatile int mHighWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private volatile OnCancelListener mOnCancelListener;
+
+    private boolean mClosed;
+    private boolean mCancelled;
+    private int mIndex;
+
+    /*********************************************************
+     * CONSTRUCTORS
+     *********************************************************/
+
+    private CobaltPluginStream(CobaltPluginWebContainer webContainer, CobaltFragment fragment, String callbackId) {
+        mWebContainer = webContainer;
+        mCallbackId = callbackId;
+        mKey = new StreamKey(fragment, callbackId);
+    }
+
+    /**
+     * Opens a stream to the specified callback of the fragment of the specified container.
+     * If a stream is already open for the same fragment and callback, it is cancelled.
+     * @param webContainer the container which sent the request.
+     * @param callbackId the Web callback of the request.
+     * @return the open stream, or null if the fragment has been garbage collected or callbackId is empty.
+     */
+    static CobaltPluginStream open(CobaltPluginWebContainer webContainer, String callbackId) {
+        CobaltFragment fragment = webContainer.getFragment();
+        if (fragment == null
+            || callbackId == null
+            || callbackId.length() == 0) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - open: fragment is gone or callbackId is null or empty!");
+            return null;
+        }
+
+        CobaltPluginStream stream = new CobaltPluginStream(webContainer, fragment, callbackId);
+        CobaltPluginStream previousStream = sOpenStreams.put(stream.mKey, stream);
+        if (previousStream != null) {
+            previousStream.cancel();
+        }
+
+        return stream;
+    }
+
+    /*********************************************************
+     * STREAMING
+     *********************************************************/
+
+    /**
+     * Sends a chunk to the Web callback.
+     * @param data the chunk.
+     * @return true if the chunk was added to the outgoing queue of the fragment, false if the stream is closed or its fragment is gone.
+     */
+    public boolean emit(JSONObject data) {
+        return send(Cobalt.JSStreamStateChunk, data, false);
+    }
+
+    /**
+     * Sends the last message to the Web callback and closes the stream.
+     * @param data the last data, may be null.
+     * @return true if the message was added to the outgoing queue of the fragment, false if the stream was already closed or its fragment is gone.
+     */
+    public boolean complete(JSONObject data) {
+        return send(Cobalt.JSStreamStateComplete, data, true);
+    }
+
+    /**
+     * Reports an error to the Web callback and closes the stream.
+     * @param message the error message sent as the message field of the data.
+     * @return true if the error was added to the outgoing queue of the fragment, false if the stream was already closed or its fragment is gone.
+     */
+    public boolean error(String message) {
+        JSONObject data = new JSONObject();
+        try {
+            data.put(Cobalt.kJSMessage, message);
+        }
+        catch (JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - error: JSONException");
+            exception.printStackTrace();
+        }
+
+        return send(Cobalt.JSStreamStateError, data, true);
+    }
+
+    private boolean send(String state, JSONObject data, boolean close) {
+        CobaltFragment fragment = mWebContainer.getFragment();
+
+        JSONObject message;
+        synchronized (this) {
+            if (mClosed) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - send: stream " + mCallbackId + " is closed, dropping " + state + ".");
+                return false;
+            }
+
+            if (fragment == null) {
+                closeLocked();
+                return false;
+            }
+
+            try {
+                JSONObject stream = new JSONObject();
+                stream.put(Cobalt.kJSStreamState, state);
+                stream.put(Cobalt.kJSStreamIndex, mIndex++);
+
+                message = new JSONObject();
+                message.put(Cobalt.kJSType, Cobalt.JSTypeCallBack);
+                message.put(Cobalt.kJSCallback, mCallbackId);
+                message.put(Cobalt.kJSData, data);
+                message.put(Cobalt.kJSStream, stream);
+            }
+            catch (JSONException exception) {
+                if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - send: JSONException");
+                exception.printStackTrace();
+                return false;
+            }
+
+            if (close) {
+                closeLocked();
+            }
+        }
+
+        fragment.sendMessage(message);
+        return true;
+    }
+
+    /*********************************************************
+     * BACKPRESSURE
+     *********************************************************/
+
+    /**
+     * Sets the number of outgoing messages of the fragment above which the stream is not writable.
+     * @param highWaterMark the maximum outgoing queue depth, at least 1.
+     */
+    public void setHighWaterMark(int highWaterMark) {
+        mHighWaterMark = Math.max(1, highWaterMark);
+    }
+
+    /**
+     * @return true if the stream is open and the outgoing queue of its fragment is below the high water mark.
+     */
+    public boolean isWritable() {
+        CobaltFragment fragment = mWebContainer.getFragment();
+        return isOpen()
+               && fragment != null
+               && fragment.getOutgoingQueueDepth() < mHighWaterMark;
+    }
+
+    /**
+     * Blocks until the outgoing queue of the fragment is below the high water mark.
+     * Must not be called from the UI thread, which flushes the outgoing queue.
+     * @param timeoutMillis the maximum time to wait, in milliseconds.
+     * @return true if the stream is writable, false if it is closed or the timeout elapsed before.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        CobaltFragment fragment = mWebContainer.getFragment();
+        return isOpen()
+               && fragment != null
+               && fragment.awaitOutgoingQueueDepth(mHighWaterMark - 1, timeoutMillis)
+               && isOpen();
+    }
+
+    /*********************************************************
+     * STATE
+     *********************************************************/
+
+    public String getCallbackId() {
+        return mCallbackId;
+    }
+
+    public synchronized boolean isOpen() {
+        return ! mClosed;
+    }
+
+    /**
+     * @return true if the stream was cancelled by the Web or because its fragment was destroyed.
+     */
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Sets the listener notified when the stream is cancelled. It is called on the thread which cancelled the stream,
+     * usually the JavaBridge thread, and should only stop the work producing the chunks.
+     * @param listener the listener, or null.
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        mOnCancelListener = listener;
+    }
+
+    private void cancel() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mCancelled = true;
+            closeLocked();
+        }
+
+        OnCancelListener listener = mOnCancelListener;
+        if (listener != null) {
+            listener.onStreamCancelled(this);
+        }
+    }
+
+    private void closeLocked() {
+        mClosed = true;
+        sOpenStreams.remove(mKey, this);
+    }
+
+    /*********************************************************
+     * CANCELLATION
+     *********************************************************/
+
+    /**
+     * Cancels the stream opened for the specified fragment and callback.
+     * @param fragment the fragment which sent the cancel message.
+     * @param callbackId the callback of the stream to cancel.
+     * @return true if an open stream was found, false otherwise.
+     */
+    static boolean cancel(CobaltFragment fragment, String callbackId) {
+        if (fragment == null
+            || callbackId == null) {
+            return false;
+        }
+
+        CobaltPluginStream stream = sOpenStreams.get(new StreamKey(fragment, callbackId));
+        if (stream != null) {
+            stream.cancel();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Cancels every stream opened for the specified fragment.
+     * @param fragment the destroyed fragment.
+     */
+    static void cancelAll(CobaltFragment fragment) {
+        List<CobaltPluginStream> streams = new ArrayList<>();
+
+        Iterator<Map.Entry<StreamKey, CobaltPluginStream>> iterator = sOpenStreams.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<StreamKey, CobaltPluginStream> entry = iterator.next();
+            if (entry.getKey().mFragment == fragment) {
+                streams.add(entry.getValue());
+            }
+        }
+
+        for (CobaltPluginStream stream : streams) {
+            stream.cancel();
+        }
+    }
+
+    /*********************************************************
+     * INNER CLASSES
+     *********************************************************/
+
+    public interface OnCancelListener {
+        void onStreamCancelled(CobaltPluginStream stream);
+    }
+
+    /**
+     * Key of an open stream. Fragments are compared by identity and released when the stream is closed.
+     */
+    private static final class StreamKey {
+
+        private final CobaltFragment mFragment;
+        private final String mCallbackId;
+
+        StreamKey(CobaltFragment fragment, String callbackId) {
+            mFragment = fragment;
+            mCallbackId = callbackId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mFragment) + mCallbackId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (! (object instanceof StreamKey)) {
+                return false;
+            }
+
+            StreamKey key = (StreamKey) object;
+            return mFragment == key.mFragment
+                   && mCallbackId.equals(key.mCallbackId);
+        }
+    }
+}
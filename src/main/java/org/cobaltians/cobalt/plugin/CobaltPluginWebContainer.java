@@ -33,22 +33,29 @@ import org.cobaltians.cobalt.fragments.CobaltFragment;
 
 import android.app.Activity;
 
+import java.lang.ref.WeakReference;
+
+/**
+ * Activity and {@link CobaltFragment} which sent a message to a plugin.
+ * Both are weakly referenced so that long-lived plugin singletons do not keep destroyed screens in memory:
+ * getters return null once the corresponding object has been garbage collected.
+ */
 public final class CobaltPluginWebContainer {
 
 	/**************************************
      * MEMBERS
      **************************************/
 	
-	private final Activity mActivity;
-	private final CobaltFragment mFragment;
+	private final WeakReference<Activity> mActivity;
+	private final WeakReference<CobaltFragment> mFragment;
 	
 	/****************************************************************************
      * CONSTRUCTORS
      ****************************************************************************/
 	
 	public CobaltPluginWebContainer(Activity activity, CobaltFragment fragment) {
-		mActivity = activity;
-		mFragment = fragment;
+		mActivity = new WeakReference<>(activity);
+		mFragment = new WeakReference<>(fragment);
 	}
 
 	/************************************
@@ -56,10 +63,23 @@ public final class CobaltPluginWebContainer {
      ************************************/
 	
 	public Activity getActivity() {
-		return mActivity;
+		return mActivity.get();
 	}
 
 	public CobaltFragment getFragment() {
-		return mFragment;
+		return mFragment.get();
+	}
+
+	/************************************
+     * STREAMING
+     ************************************/
+
+	/**
+	 * Opens a {@link CobaltPluginStream} allowing to call the specified Web callback several times.
+	 * @param callbackId the callback of the message received from this container.
+	 * @return the stream, or null if the fragment is gone or callbackId is empty.
+	 */
+	public CobaltPluginStream openStream(String callbackId) {
+		return CobaltPluginStream.open(this, callbackId);
 	}
 }
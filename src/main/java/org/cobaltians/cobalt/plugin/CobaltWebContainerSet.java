@@ -0,0 +1,163 @@
+/**
+ *
+ * CobaltWebContainerSet
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.plugin;
+
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent set of {@link CobaltPluginWebContainer}s identified by their {@link CobaltFragment}.
+ * Fragments are compared by identity and weakly referenced: entries of garbage collected fragments are purged on the next access.
+ * When a fragment is added again (e.g. retained across a configuration change), its entry is updated with the latest container.
+ */
+final class CobaltWebContainerSet {
+
+    /*************************************
+     * MEMBERS
+     *************************************/
+
+    private final ConcurrentHashMap<FragmentKey, CobaltPluginWebContainer> mContainers = new ConcurrentHashMap<>();
+    private final ReferenceQueue<CobaltFragment> mCollectedFragments = new ReferenceQueue<>();
+
+    /*********************************************************
+     * METHODS
+     *********************************************************/
+
+    /**
+     * Adds or updates the entry of the fragment of the specified container.
+     * @param webContainer the container to add.
+     * @return true if no live entry existed for the container fragment, false otherwise.
+     */
+    boolean add(CobaltPluginWebContainer webContainer) {
+        purge();
+
+        CobaltFragment fragment = webContainer.getFragment();
+        if (fragment == null) {
+            return false;
+        }
+
+        return mContainers.put(new FragmentKey(fragment, mCollectedFragments), webContainer) == null;
+    }
+
+    /**
+     * Removes the entry of the specified fragment.
+     * @param fragment the fragment to remove.
+     * @return the removed container, or null if the fragment was absent.
+     */
+    CobaltPluginWebContainer remove(CobaltFragment fragment) {
+        purge();
+
+        if (fragment == null) {
+            return null;
+        }
+
+        return mContainers.remove(new FragmentKey(fragment, null));
+    }
+
+    boolean contains(CobaltFragment fragment) {
+        return fragment != null
+               && mContainers.containsKey(new FragmentKey(fragment, null));
+    }
+
+    /**
+     * @return a snapshot of the containers whose fragment is still alive.
+     */
+    List<CobaltPluginWebContainer> snapshot() {
+        purge();
+
+        List<CobaltPluginWebContainer> containers = new ArrayList<>(mContainers.size());
+        Iterator<Map.Entry<FragmentKey, CobaltPluginWebContainer>> iterator = mContainers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<FragmentKey, CobaltPluginWebContainer> entry = iterator.next();
+            if (entry.getKey().get() != null) {
+                containers.add(entry.getValue());
+            }
+        }
+
+        return containers;
+    }
+
+    int size() {
+        purge();
+        return mContainers.size();
+    }
+
+    private void purge() {
+        Reference<? extends CobaltFragment> reference;
+        while ((reference = mCollectedFragments.poll()) != null) {
+            mContainers.remove(reference);
+        }
+    }
+
+    /*********************************************************
+     * KEY
+     *********************************************************/
+
+    /**
+     * Weak reference to a fragment, compared by fragment identity.
+     * Its hash code is computed once so that the entry can still be removed after the fragment is collected.
+     */
+    private static final class FragmentKey extends WeakReference<CobaltFragment> {
+
+        private final int mHashCode;
+
+        FragmentKey(CobaltFragment fragment, ReferenceQueue<CobaltFragment> queue) {
+            super(fragment, queue);
+            mHashCode = System.identityHashCode(fragment);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (! (object instanceof FragmentKey)) {
+                return false;
+            }
+
+            CobaltFragment fragment = get();
+            return fragment != null
+                   && fragment == ((FragmentKey) object).get();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ *
+ * CobaltAssetCacheStats
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+/**
+ * Snapshot of the size and statistics of the assets kept in memory by the {@link CobaltAssetInterceptor}.
+ */
+public final class CobaltAssetCacheStats {
+
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mUncachedCount;
+    private final long mEvictionCount;
+    private final int mAssetCount;
+    private final long mSize;
+    private final long mMaxSize;
+
+    CobaltAssetCacheStats(long hitCount, long missCount, long uncachedCount, long evictionCount, int assetCount, long size, long maxSize) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mUncachedCount = uncachedCount;
+        mEvictionCount = evictionCount;
+        mAssetCount = assetCount;
+        mSize = size;
+        mMaxSize = maxSize;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of requests for which the asset was read from the APK.
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the share of asset requests served from memory, between 0 and 1, or 0 if no asset was requested.
+     */
+    public float getHitRate() {
+        long requestCount = mHitCount + mMissCount;
+        return requestCount > 0 ? (float) mHitCount / requestCount : 0;
+    }
+
+    /**
+     * @return the number of misses for which the asset was too large to be kept in memory.
+     */
+    public long getUncachedCount() {
+        return mUncachedCount;
+    }
+
+    /**
+     * @return the number of assets evicted because the cache was full.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public int getAssetCount() {
+        return mAssetCount;
+    }
+
+    /**
+     * @return the size of the assets in memory, in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum size of the assets in memory, in bytes.
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "{hits: " + mHitCount
+                + ", misses: " + mMissCount
+                + ", uncached: " + mUncachedCount
+                + ", evictions: " + mEvictionCount
+                + ", assets: " + mAssetCount
+                + ", size: " + mSize + "/" + mMaxSize + "}";
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ *
+ * CobaltAssetInterceptor
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves the assets loaded by the Web views from file:///android_asset/ URLs, keeping the most recently used ones in memory
+ * so that navigations do not read the same scripts and style sheets through the AssetManager again.
+ *
+ * An asset may be packaged gzipped next to its path, with the .gz extension, to reduce the APK size: it is decompressed once
+ * when loaded in memory, Web views not decoding the Content-Encoding of intercepted responses.
+ * Responses carry a long-lived Cache-Control header and an ETag, assets only changing with the application.
+ * Assets larger than MAX_ASSET_SIZE are streamed from the AssetManager, decompressed on the fly, without an ETag.
+ */
+public final class CobaltAssetInterceptor implements CobaltResourceInterceptor {
+
+    private static final String TAG = CobaltAssetInterceptor.class.getSimpleName();
+
+    private static final String PATH_PREFIX = "/android_asset/";
+    private static final String SCHEME_FILE = "file";
+    private static final String GZIP_EXTENSION = ".gz";
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+    // Larger assets are streamed without being kept in memory
+    private static final int MAX_ASSET_SIZE = MAX_SIZE / 8;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String CACHE_CONTROL = "max-age=31536000";
+
+    private static CobaltAssetInterceptor sInstance;
+
+    private final LruCache<String, Asset> mAssets;
+    // Paths of the assets too large to be kept in memory, streamed on each request. Guarded by this
+    private final HashSet<String> mLargeAssets = new HashSet<>();
+
+    // Guarded by this
+    private long mHitCount;
+    private long mMissCount;
+    private long mUncachedCount;
+
+    private CobaltAssetInterceptor() {
+        mAssets = new LruCache<String, Asset>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(String path, Asset asset) {
+                return asset.mData.length;
+            }
+        };
+    }
+
+    public static synchronized CobaltAssetInterceptor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CobaltAssetInterceptor();
+        }
+
+        return sInstance;
+    }
+
+    @Override
+    public WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders) {
+        String path = url.getPath();
+        if (! SCHEME_FILE.equals(url.getScheme())
+            || path == null
+            || ! path.startsWith(PATH_PREFIX)) {
+            return null;
+        }
+
+        Context context = Cobalt.getAppContext();
+        if (context == null) {
+            return null;
+        }
+
+        String assetPath = path.substring(PATH_PREFIX.length());
+        Asset asset = mAssets.get(assetPath);
+        if (asset != null) {
+            synchronized (this) {
+                mHitCount++;
+            }
+        }
+        else {
+            boolean large;
+            synchronized (this) {
+                mMissCount++;
+                large = mLargeAssets.contains(assetPath);
+                if (large) {
+                    mUncachedCount++;
+                }
+            }
+
+            try {
+                InputStream inputStream = open(context, assetPath);
+                if (large) {
+                    return createLargeResponse(assetPath, inputStream);
+                }
+
+                byte[] data = read(inputStream, MAX_ASSET_SIZE + 1);
+                if (data.length > MAX_ASSET_SIZE) {
+                    onLargeAsset(assetPath);
+                    // Serves what was read so far followed by the rest of the asset
+                    return createLargeResponse(assetPath, new SequenceInputStream(new ByteArrayInputStream(data), inputStream));
+                }
+
+                inputStream.close();
+                asset = createAsset(assetPath, data);
+            }
+            catch (FileNotFoundException exception) {
+                // Lets the Web view fail the request itself
+                return null;
+            }
+            catch (IOException exception) {
+                if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - intercept: unable to read asset " + assetPath + ".");
+                exception.printStackTrace();
+                return null;
+            }
+
+            mAssets.put(assetPath, asset);
+        }
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(CobaltWebResourceResponses.HEADER_ETAG, asset.mETag);
+        headers.put(CobaltWebResourceResponses.HEADER_CACHE_CONTROL, CACHE_CONTROL);
+        return CobaltWebResourceResponses.ok(asset.mMimeType, asset.mEncoding, headers, new ByteArrayInputStream(asset.mData));
+    }
+
+    /**
+     * Loads the asset at the given path in memory, if not already, so that its first request does not wait for the AssetManager.
+     * Should be called on a background thread.
+     * @param context: the context
+     * @param assetPath: the asset path, like www/index.html
+     * @return true if the asset is in memory, false if it is not packaged, unreadable or too large to be kept
+     */
+    public boolean prefetch(Context context, String assetPath) {
+        if (mAssets.get(assetPath) != null) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (mLargeAssets.contains(assetPath)) {
+                return false;
+            }
+        }
+
+        byte[] data;
+        try {
+            InputStream inputStream = open(context, assetPath);
+            try {
+                data = read(inputStream, MAX_ASSET_SIZE + 1);
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        catch (FileNotFoundException exception) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - prefetch: asset " + assetPath + " not found.");
+            return false;
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - prefetch: unable to read asset " + assetPath + ".");
+            exception.printStackTrace();
+            return false;
+        }
+
+        if (data.length > MAX_ASSET_SIZE) {
+            onLargeAsset(assetPath);
+            return false;
+        }
+
+        mAssets.put(assetPath, createAsset(assetPath, data));
+        return true;
+    }
+
+    /**
+     * Evicts every asset from memory.
+     */
+    public void evictAll() {
+        mAssets.evictAll();
+    }
+
+    /**
+     * @return a snapshot of the cache size and statistics since the application started.
+     */
+    public synchronized CobaltAssetCacheStats getStats() {
+        return new CobaltAssetCacheStats(mHitCount, mMissCount, mUncachedCount, mAssets.evictionCount(),
+                                         mAssets.snapshot().size(), mAssets.size(), mAssets.maxSize());
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private synchronized void onLargeAsset(String assetPath) {
+        mLargeAssets.add(assetPath);
+        mUncachedCount++;
+    }
+
+    /**
+     * Opens the asset at the given path, decompressing its gzipped variant if packaged.
+     * @throws FileNotFoundException if the asset is not packaged
+     */
+    private static InputStream open(Context context, String assetPath) throws IOException {
+        InputStream gzipInputStream;
+        try {
+            gzipInputStream = context.getAssets().open(assetPath + GZIP_EXTENSION);
+        }
+        catch (FileNotFoundException exception) {
+            return context.getAssets().open(assetPath);
+        }
+
+        try {
+            return new GZIPInputStream(gzipInputStream, BUFFER_SIZE);
+        }
+        catch (IOException exception) {
+            gzipInputStream.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * @return the first bytes of the given stream, at most maxLength, leaving the rest unread. The stream is closed on failure only.
+     */
+    private static byte[] read(InputStream inputStream, int maxLength) throws IOException {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while (outputStream.size() < maxLength
+                   && (length = inputStream.read(buffer, 0, Math.min(buffer.length, maxLength - outputStream.size()))) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        }
+        catch (IOException exception) {
+            inputStream.close();
+            throw exception;
+        }
+    }
+
+    private static Asset createAsset(String assetPath, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        String etag = "\"a" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(data.length) + "\"";
+
+        String mimeType = CobaltWebResourceResponses.getMimeType(assetPath);
+        return new Asset(data, mimeType, CobaltWebResourceResponses.getEncoding(mimeType), etag);
+    }
+
+    /**
+     * @return a response streaming the given asset data, without ETag since the asset is not read as a whole beforehand.
+     */
+    private static WebResourceResponse createLargeResponse(String assetPath, InputStream data) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(CobaltWebResourceResponses.HEADER_CACHE_CONTROL, CACHE_CONTROL);
+        String mimeType = CobaltWebResourceResponses.getMimeType(assetPath);
+        return CobaltWebResourceResponses.ok(mimeType, CobaltWebResourceResponses.getEncoding(mimeType), headers, data);
+    }
+
+    private static final class Asset {
+        private final byte[] mData;
+        private final String mMimeType;
+        private final String mEncoding;
+        private final String mETag;
+
+        Asset(byte[] data, String mimeType, String encoding, String etag) {
+            mData = data;
+            mMimeType = mimeType;
+            mEncoding = encoding;
+            mETag = etag;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ *
+ * CobaltBundle
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Read-only bundle of Web resources packed in a single file, produced by the packCobaltBundle Gradle task,
+ * avoiding the per-file overhead of the AssetManager for folders of many small files.
+ *
+ * The bundle is memory-mapped, so it must be stored uncompressed in the APK, and resources are served as slices of the mapping.
+ * Format, big-endian: the magic "CBND", the version, the entry count, then for each entry its path length (unsigned short),
+ * its UTF-8 path relative to the bundle root, its offset from the start of the file, its length and its CRC32,
+ * followed by the contents of the entries.
+ */
+public final class CobaltBundle {
+
+    private static final String TAG = CobaltBundle.class.getSimpleName();
+
+    /**
+     * Extension of the bundles, whose path may be given to {@link Cobalt#setResourcePath(String)} instead of a folder
+     */
+    public static final String EXTENSION = ".cbundle";
+
+    private static final int MAGIC = 0x43424E44;
+    private static final int VERSION = 1;
+    private static final int PAGE_SIZE = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Bundles opened by get, by path, null if they could not be opened. Guarded by the class
+    private static final HashMap<String, CobaltBundle> sBundles = new HashMap<>();
+
+    private final ByteBuffer mBuffer;
+    private final HashMap<String, Entry> mEntries;
+
+    private CobaltBundle(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        mEntries = readIndex(buffer);
+    }
+
+    /**
+     * Opens and memory-maps the bundle at the given path.
+     * @param context: the context
+     * @param path: the absolute path of a bundle file, in the files directory for example,
+     *            or else the path of a bundle in the assets
+     * @return the bundle
+     * @throws IOException if the bundle is absent, compressed in the APK or malformed
+     */
+    public static CobaltBundle open(Context context, String path) throws IOException {
+        long startTime = System.nanoTime();
+
+        ByteBuffer buffer;
+        if (path.startsWith(File.separator)) {
+            FileInputStream inputStream = new FileInputStream(path);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        else {
+            // Throws a FileNotFoundException for compressed assets
+            AssetFileDescriptor fileDescriptor = context.getAssets().openFd(path);
+            try {
+                FileInputStream inputStream = fileDescriptor.createInputStream();
+                try {
+                    buffer = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                          fileDescriptor.getStartOffset(), fileDescriptor.getLength());
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+            finally {
+                fileDescriptor.close();
+            }
+        }
+
+        CobaltBundle bundle = new CobaltBundle(buffer);
+        if (Cobalt.DEBUG) Log.d(Cobalt.TAG, TAG + " - open: " + path + " opened with " + bundle.mEntries.size() + " entries in "
+                                            + (System.nanoTime() - startTime) / 1000 + "us.");
+        return bundle;
+    }
+
+    /**
+     * Returns the bundle at the given path, opened on first call and then kept open,
+     * so that pages loaded from a previous bundle keep working after an update.
+     * @param context: the context
+     * @param path: the absolute path of a bundle file, or else the path of a bundle in the assets
+     * @return the bundle, or null if it could not be opened
+     */
+    public static synchronized CobaltBundle get(Context context, String path) {
+        if (sBundles.containsKey(path)) {
+            return sBundles.get(path);
+        }
+
+        CobaltBundle bundle = null;
+        try {
+            bundle = open(context, path);
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - get: unable to open " + path + ", it must be stored uncompressed.");
+            exception.printStackTrace();
+        }
+
+        sBundles.put(path, bundle);
+        return bundle;
+    }
+
+    /**
+     * @return true if the bundle contains an entry at the given path.
+     */
+    public boolean contains(String path) {
+        return mEntries.containsKey(path);
+    }
+
+    /**
+     * Returns the content of the entry at the given path, without copying it.
+     * @param path: the entry path relative to the bundle root
+     * @return a read-only buffer of the content, or null if the bundle contains no entry at this path
+     */
+    public ByteBuffer get(String path) {
+        Entry entry = mEntries.get(path);
+        if (entry == null) {
+            return null;
+        }
+
+        // The mapping is shared, so each slice gets its own position and limit
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(entry.mOffset + entry.mLength);
+        buffer.position(entry.mOffset);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens the entry at the given path.
+     * @param path: the entry path relative to the bundle root
+     * @return a stream reading the content from the mapping
+     * @throws FileNotFoundException if the bundle contains no entry at this path
+     */
+    public InputStream open(String path) throws FileNotFoundException {
+        ByteBuffer buffer = get(path);
+        if (buffer == null) {
+            throw new FileNotFoundException(path + " not found in bundle");
+        }
+
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * Reads one byte per page of the entry at the given path, so that its first request does not wait for the disk.
+     * Should be called on a background thread.
+     * @param path: the entry path relative to the bundle root
+     * @return true if the bundle contains an entry at this path
+     */
+    public boolean prefetch(String path) {
+        ByteBuffer buffer = get(path);
+        if (buffer == null) {
+            return false;
+        }
+
+        for (int position = 0; position < buffer.limit(); position += PAGE_SIZE) {
+            buffer.get(position);
+        }
+        return true;
+    }
+
+    /**
+     * @return the CRC32 of the entry at the given path, as written when the bundle was packed, or -1 if absent.
+     */
+    public long getCrc(String path) {
+        Entry entry = mEntries.get(path);
+        return entry != null ? entry.mCrc & 0xFFFFFFFFL : -1;
+    }
+
+    /**
+     * @return the whole bundle file, read-only, without copying it.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer.duplicate().asReadOnlyBuffer();
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private static HashMap<String, Entry> readIndex(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBuffer index = buffer.duplicate();
+            if (index.getInt() != MAGIC) {
+                throw new IOException("Not a Cobalt bundle");
+            }
+
+            int version = index.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported Cobalt bundle version " + version);
+            }
+
+            int count = index.getInt();
+            HashMap<String, Entry> entries = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            byte[] pathBytes = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int pathLength = index.getShort() & 0xFFFF;
+                if (pathLength > pathBytes.length) {
+                    pathBytes = new byte[pathLength];
+                }
+                index.get(pathBytes, 0, pathLength);
+                String path = new String(pathBytes, 0, pathLength, UTF_8);
+
+                int offset = index.getInt();
+                int length = index.getInt();
+                int crc = index.getInt();
+                if (offset < 0
+                    || length < 0
+                    || (long) offset + length > buffer.capacity()) {
+                    throw new IOException("Entry " + path + " out of the Cobalt bundle");
+                }
+
+                entries.put(path, new Entry(offset, length, crc));
+            }
+
+            return entries;
+        }
+        catch (BufferUnderflowException exception) {
+            throw new IOException("Truncated Cobalt bundle");
+        }
+    }
+
+    private static final class Entry {
+        private final int mOffset;
+        private final int mLength;
+        private final int mCrc;
+
+        Entry(int offset, int length, int crc) {
+            mOffset = offset;
+            mLength = length;
+            mCrc = crc;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (! mBuffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
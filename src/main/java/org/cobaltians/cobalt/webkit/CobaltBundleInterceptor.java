@@ -0,0 +1,97 @@
+/**
+ *
+ * CobaltBundleInterceptor
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.content.Context;
+import android.net.Uri;
+import android.webkit.WebResourceResponse;
+
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the resources of the Web views from {@link CobaltBundle}s, at the URLs under the path of a bundle,
+ * in the assets like file:///android_asset/www.cbundle/index.html or at an absolute path.
+ * Every bundle stays open once served, so pages loaded before an update keep being served from their bundle.
+ * Responses carry a long-lived Cache-Control header and an ETag, bundles only changing with the application.
+ */
+final class CobaltBundleInterceptor implements CobaltResourceInterceptor {
+
+    private static final String CACHE_CONTROL = "max-age=31536000";
+    private static final String ASSETS_PATH_PREFIX = "/android_asset/";
+
+    @Override
+    public WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders) {
+        Context context = Cobalt.getAppContext();
+        if (context == null) {
+            return null;
+        }
+
+        String path = url.getPath();
+        int bundlePathEnd = path != null ? path.indexOf(CobaltBundle.EXTENSION + "/") : -1;
+        if (! "file".equals(url.getScheme())
+            || bundlePathEnd == -1) {
+            return null;
+        }
+
+        bundlePathEnd += CobaltBundle.EXTENSION.length();
+        String bundlePath = path.substring(0, bundlePathEnd);
+        if (bundlePath.startsWith(ASSETS_PATH_PREFIX)) {
+            bundlePath = bundlePath.substring(ASSETS_PATH_PREFIX.length());
+        }
+
+        CobaltBundle bundle = CobaltBundle.get(context, bundlePath);
+        if (bundle == null) {
+            return null;
+        }
+
+        String entryPath = path.substring(bundlePathEnd + 1);
+        long crc = bundle.getCrc(entryPath);
+        if (crc == -1) {
+            return CobaltWebResourceResponses.notFound();
+        }
+
+        String etag = "\"b" + Long.toHexString(crc) + "\"";
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(CobaltWebResourceResponses.HEADER_ETAG, etag);
+        headers.put(CobaltWebResourceResponses.HEADER_CACHE_CONTROL, CACHE_CONTROL);
+        String mimeType = CobaltWebResourceResponses.getMimeType(entryPath);
+        try {
+            return CobaltWebResourceResponses.ok(mimeType, CobaltWebResourceResponses.getEncoding(mimeType), headers, bundle.open(entryPath));
+        }
+        catch (FileNotFoundException exception) {
+            return CobaltWebResourceResponses.notFound();
+        }
+    }
+}
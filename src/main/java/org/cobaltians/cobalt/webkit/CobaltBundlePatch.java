@@ -0,0 +1,139 @@
+/**
+ *
+ * CobaltBundlePatch
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Applies binary delta patches to {@link CobaltBundle}s.
+ * Format, big-endian: the magic "CPCH", the version, the 32 bytes SHA-256 of the base bundle, then a sequence of operations,
+ * each starting with its type: COPY, followed by an offset and a length, copies a range of the base bundle;
+ * ADD, followed by a length and as many bytes, appends these bytes; END terminates the patch.
+ */
+final class CobaltBundlePatch {
+
+    private static final int MAGIC = 0x43504348;
+    private static final int VERSION = 1;
+    private static final int SHA256_LENGTH = 32;
+
+    private static final int OPERATION_END = 0;
+    private static final int OPERATION_COPY = 1;
+    private static final int OPERATION_ADD = 2;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private CobaltBundlePatch() {
+
+    }
+
+    /**
+     * Writes the bundle produced by applying the given patch to the given base bundle.
+     * @param base: the base bundle
+     * @param baseSha256: the SHA-256 of the base bundle, which must match the one the patch was made for
+     * @param patch: the patch stream
+     * @param outputStream: the stream receiving the patched bundle
+     * @throws IOException if the patch is malformed, made for another base or could not be read or written
+     */
+    static void apply(ByteBuffer base, byte[] baseSha256, InputStream patch, OutputStream outputStream) throws IOException {
+        DataInputStream inputStream = new DataInputStream(patch);
+        if (inputStream.readInt() != MAGIC) {
+            throw new IOException("Not a Cobalt bundle patch");
+        }
+
+        int version = inputStream.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported Cobalt bundle patch version " + version);
+        }
+
+        byte[] patchBaseSha256 = new byte[SHA256_LENGTH];
+        inputStream.readFully(patchBaseSha256);
+        if (! Arrays.equals(patchBaseSha256, baseSha256)) {
+            throw new IOException("Cobalt bundle patch made for another bundle");
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            int operation = inputStream.read();
+            switch (operation) {
+                case OPERATION_END:
+                    return;
+
+                case OPERATION_COPY: {
+                    int offset = inputStream.readInt();
+                    int length = inputStream.readInt();
+                    if (offset < 0
+                        || length < 0
+                        || (long) offset + length > base.capacity()) {
+                        throw new IOException("Cobalt bundle patch copy out of the base bundle");
+                    }
+
+                    ByteBuffer range = base.duplicate();
+                    range.position(offset);
+                    while (length > 0) {
+                        int count = Math.min(length, buffer.length);
+                        range.get(buffer, 0, count);
+                        outputStream.write(buffer, 0, count);
+                        length -= count;
+                    }
+                    break;
+                }
+
+                case OPERATION_ADD: {
+                    int length = inputStream.readInt();
+                    if (length < 0) {
+                        throw new IOException("Cobalt bundle patch with negative length");
+                    }
+
+                    while (length > 0) {
+                        int count = inputStream.read(buffer, 0, Math.min(length, buffer.length));
+                        if (count == -1) {
+                            throw new EOFException("Truncated Cobalt bundle patch");
+                        }
+                        outputStream.write(buffer, 0, count);
+                        length -= count;
+                    }
+                    break;
+                }
+
+                case -1:
+                    throw new EOFException("Truncated Cobalt bundle patch");
+
+                default:
+                    throw new IOException("Unknown Cobalt bundle patch operation " + operation);
+            }
+        }
+    }
+}
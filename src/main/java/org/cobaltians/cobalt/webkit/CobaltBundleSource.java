@@ -0,0 +1,57 @@
+/**
+ *
+ * CobaltBundleSource
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of the {@link CobaltBundle} updates installed by the {@link CobaltBundleUpdater}, a server or a local folder for example.
+ * Methods are called on the background thread of the updater.
+ */
+public interface CobaltBundleSource {
+
+    /**
+     * Returns the latest update available for the installed bundle.
+     * @param currentVersion: the version of the installed bundle, or null for the bundle of the APK
+     * @param currentSha256: the hexadecimal SHA-256 of the installed bundle, or null if resources are not in a bundle
+     * @return the update, a patch if one applies to the current bundle, or null if the current bundle is the latest
+     * @throws IOException if the source could not be reached
+     */
+    CobaltBundleUpdate getUpdate(String currentVersion, String currentSha256) throws IOException;
+
+    /**
+     * Opens the given update, a bundle or a patch according to {@link CobaltBundleUpdate#isPatch()}.
+     * @param update: the update returned by {@link #getUpdate(String, String)}
+     * @return the update stream, closed by the updater
+     * @throws IOException if the update could not be opened
+     */
+    InputStream open(CobaltBundleUpdate update) throws IOException;
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ * CobaltBundleUpdate
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+/**
+ * Update of the Web resources provided by a {@link CobaltBundleSource}: a whole {@link CobaltBundle},
+ * or a patch to apply to the installed bundle.
+ */
+public final class CobaltBundleUpdate {
+
+    private final String mVersion;
+    private final String mSha256;
+    private final String mLocation;
+    private final String mBaseSha256;
+
+    /**
+     * @param version: the version of the updated bundle
+     * @param sha256: the hexadecimal SHA-256 of the updated bundle, verified once downloaded or patched
+     * @param location: the location of the bundle or patch, interpreted by the source
+     * @param baseSha256: the hexadecimal SHA-256 of the bundle the patch applies to, or null if the update is a whole bundle
+     */
+    public CobaltBundleUpdate(String version, String sha256, String location, String baseSha256) {
+        mVersion = version;
+        mSha256 = sha256;
+        mLocation = location;
+        mBaseSha256 = baseSha256;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public String getLocation() {
+        return mLocation;
+    }
+
+    public String getBaseSha256() {
+        return mBaseSha256;
+    }
+
+    public boolean isPatch() {
+        return mBaseSha256 != null;
+    }
+
+    @Override
+    public String toString() {
+        return "{version: " + mVersion
+                + ", sha256: " + mSha256
+                + ", location: " + mLocation
+                + (isPatch() ? ", patch of: " + mBaseSha256 : "") + "}";
+    }
+}
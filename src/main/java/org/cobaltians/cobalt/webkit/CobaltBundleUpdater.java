@@ -0,0 +1,466 @@
+/**
+ *
+ * CobaltBundleUpdater
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Installs updates of the Web resources as {@link CobaltBundle}s in the files directory, so Web fixes do not need an app release.
+ *
+ * Updates come from a {@link CobaltBundleSource}, as whole bundles or as patches of the installed bundle,
+ * or of the bundle of the APK if none was installed. Each update is written next to the installed bundle,
+ * verified against its SHA-256, then made current by atomically replacing a pointer file.
+ * The resource path switches to the new bundle once installed, for the pages loaded from then on;
+ * pages already loaded keep their bundle until the next application start.
+ * Installed bundles are discarded when the application is upgraded, as the APK ships newer resources for its native layer.
+ */
+public final class CobaltBundleUpdater {
+
+    private static final String TAG = CobaltBundleUpdater.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "cobalt_bundles";
+    private static final String CURRENT_FILE = "current.json";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final String kVersion = "version";
+    private static final String kSha256 = "sha256";
+    private static final String kAppVersionCode = "appVersionCode";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static CobaltBundleUpdater sInstance;
+
+    /**
+     * Listener of {@link #update(OnBundleUpdatedListener)}, called on the main thread.
+     */
+    public interface OnBundleUpdatedListener {
+        /**
+         * @param update: the installed update, or null if the installed bundle is the latest or the update failed
+         */
+        void onBundleUpdated(CobaltBundleUpdate update);
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile CobaltBundleSource mSource;
+
+    private CobaltBundleUpdater(Context context) {
+        mContext = context.getApplicationContext();
+        mDirectory = new File(mContext.getFilesDir(), DIRECTORY_NAME);
+
+        HandlerThread thread = new HandlerThread("CobaltBundleUpdater", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized CobaltBundleUpdater getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CobaltBundleUpdater(context);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * @param source: the source of the updates
+     */
+    public void setSource(CobaltBundleSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Sets the resource path to the installed bundle, if any, and deletes the bundles of previous updates.
+     * Must be called at application start, before any page is loaded.
+     * @return the version of the installed bundle, or null if the resources of the APK are used
+     */
+    public synchronized String applyInstalledBundle() {
+        JSONObject current = readCurrent();
+        if (current == null) {
+            return null;
+        }
+
+        File bundleFile = getBundleFile(current.optString(kSha256));
+        if (! bundleFile.exists()) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - applyInstalledBundle: " + bundleFile + " is missing, using the resources of the APK.");
+            return null;
+        }
+
+        Cobalt.getInstance(mContext).setResourcePath(bundleFile.getPath());
+        deleteBundlesExcept(bundleFile.getName(), null);
+        return current.optString(kVersion, null);
+    }
+
+    /**
+     * @return the version of the installed bundle, or null if none was installed.
+     */
+    public synchronized String getInstalledVersion() {
+        JSONObject current = readCurrent();
+        return current != null ? current.optString(kVersion, null) : null;
+    }
+
+    /**
+     * Checks the source for an update and installs it, in background.
+     * @param listener: the listener called on the main thread once done, may be null
+     */
+    public void update(final OnBundleUpdatedListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CobaltBundleUpdate update = null;
+                try {
+                    update = install();
+                }
+                catch (IOException exception) {
+                    if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - update: unable to install update, " + exception.getMessage());
+                    exception.printStackTrace();
+                }
+
+                final CobaltBundleUpdate installedUpdate = update;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (installedUpdate != null) {
+                            Cobalt.getInstance(mContext).setResourcePath(getBundleFile(installedUpdate.getSha256()).getPath());
+                        }
+                        if (listener != null) {
+                            listener.onBundleUpdated(installedUpdate);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /*********************************************************
+     * INSTALLATION
+     *********************************************************/
+
+    /**
+     * Downloads, verifies and installs the latest update. Must be called on the updater thread.
+     * @return the installed update, or null if the installed bundle is the latest
+     */
+    private CobaltBundleUpdate install() throws IOException {
+        CobaltBundleSource source = mSource;
+        if (source == null) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - install: no source set!");
+            return null;
+        }
+
+        JSONObject current;
+        synchronized (this) {
+            current = readCurrent();
+        }
+
+        String currentVersion = null;
+        String currentSha256 = null;
+        CobaltBundle currentBundle;
+        if (current != null) {
+            currentVersion = current.optString(kVersion, null);
+            currentSha256 = current.optString(kSha256, null);
+            currentBundle = CobaltBundle.get(mContext, getBundleFile(currentSha256).getPath());
+        }
+        else {
+            currentBundle = Cobalt.getInstance(mContext).getResourceBundle();
+            if (currentBundle != null) {
+                currentSha256 = toHex(sha256(currentBundle.getBuffer()));
+            }
+        }
+
+        CobaltBundleUpdate update = source.getUpdate(currentVersion, currentSha256);
+        if (update == null) {
+            if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - install: bundle " + currentVersion + " is the latest.");
+            return null;
+        }
+        // Used in file names before being verified
+        if (! isSha256(update.getSha256())) {
+            throw new IOException("invalid SHA-256 for " + update);
+        }
+        if (update.isPatch()
+            && (currentBundle == null
+                || ! update.getBaseSha256().equalsIgnoreCase(currentSha256))) {
+            throw new IOException("patch " + update + " does not apply to the current bundle " + currentSha256);
+        }
+
+        if (! mDirectory.isDirectory()
+            && ! mDirectory.mkdirs()) {
+            throw new IOException("unable to create " + mDirectory);
+        }
+
+        File bundleFile = getBundleFile(update.getSha256());
+        File temporaryFile = new File(mDirectory, bundleFile.getName() + TEMPORARY_EXTENSION);
+        boolean installed = false;
+        try {
+            MessageDigest digest = newSha256Digest();
+            FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+            OutputStream outputStream = new DigestOutputStream(new BufferedOutputStream(fileOutputStream, BUFFER_SIZE), digest);
+            try {
+                InputStream inputStream = source.open(update);
+                try {
+                    if (update.isPatch()) {
+                        CobaltBundlePatch.apply(currentBundle.getBuffer(), fromHex(currentSha256), inputStream, outputStream);
+                    }
+                    else {
+                        copy(inputStream, outputStream);
+                    }
+                }
+                finally {
+                    inputStream.close();
+                }
+
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            finally {
+                outputStream.close();
+            }
+
+            String sha256 = toHex(digest.digest());
+            if (! sha256.equalsIgnoreCase(update.getSha256())) {
+                throw new IOException("checksum mismatch for " + update + ", got " + sha256);
+            }
+
+            // Fails on malformed bundles
+            CobaltBundle.open(mContext, temporaryFile.getPath());
+
+            if (! temporaryFile.renameTo(bundleFile)) {
+                throw new IOException("unable to rename " + temporaryFile + " to " + bundleFile);
+            }
+
+            synchronized (this) {
+                writeCurrent(update.getVersion(), update.getSha256().toLowerCase());
+                // Pages loaded from the previous bundle keep using it until the next application start
+                deleteBundlesExcept(bundleFile.getName(), currentSha256 != null ? getBundleFile(currentSha256).getName() : null);
+            }
+            installed = true;
+
+            if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - install: installed " + update + ".");
+            return update;
+        }
+        finally {
+            if (! installed) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    private File getBundleFile(String sha256) {
+        return new File(mDirectory, sha256.toLowerCase() + CobaltBundle.EXTENSION);
+    }
+
+    /**
+     * @return the version and SHA-256 of the installed bundle, or null if none was installed for the current version of the application,
+     *         in which case the installed bundles are deleted. Must be called holding the lock.
+     */
+    private JSONObject readCurrent() {
+        File currentFile = new File(mDirectory, CURRENT_FILE);
+        if (! currentFile.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream inputStream = new FileInputStream(currentFile);
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                copy(inputStream, outputStream);
+                JSONObject current = new JSONObject(outputStream.toString("UTF-8"));
+                if (! isSha256(current.optString(kSha256, null))) {
+                    if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readCurrent: invalid SHA-256 in " + currentFile + ".");
+                    return null;
+                }
+
+                long appVersionCode = current.optLong(kAppVersionCode, -1);
+                if (appVersionCode != getAppVersionCode()) {
+                    if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - readCurrent: bundle " + current.optString(kVersion, null)
+                                                        + " was installed by version " + appVersionCode + " of the application, deleting it.");
+                    deleteBundlesExcept(null, null);
+                    currentFile.delete();
+                    return null;
+                }
+
+                return current;
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        catch (IOException | JSONException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readCurrent: unable to read " + currentFile + ".");
+            exception.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return the versionCode of the application, or -1 if unknown.
+     */
+    private long getAppVersionCode() {
+        try {
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).versionCode;
+        }
+        catch (PackageManager.NameNotFoundException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Replaces the pointer to the installed bundle atomically. Must be called holding the lock.
+     */
+    private void writeCurrent(String version, String sha256) throws IOException {
+        JSONObject current = new JSONObject();
+        try {
+            current.put(kVersion, version);
+            current.put(kSha256, sha256);
+            current.put(kAppVersionCode, getAppVersionCode());
+        }
+        catch (JSONException exception) {
+            throw new IOException(exception.getMessage());
+        }
+
+        File currentFile = new File(mDirectory, CURRENT_FILE);
+        File temporaryFile = new File(mDirectory, CURRENT_FILE + TEMPORARY_EXTENSION);
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(current.toString().getBytes("UTF-8"));
+            outputStream.getFD().sync();
+        }
+        finally {
+            outputStream.close();
+        }
+
+        if (! temporaryFile.renameTo(currentFile)) {
+            temporaryFile.delete();
+            throw new IOException("unable to rename " + temporaryFile + " to " + currentFile);
+        }
+    }
+
+    /**
+     * Deletes the installed bundles and leftover files except the given ones. Must be called holding the lock.
+     */
+    private void deleteBundlesExcept(String keptName, String otherKeptName) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (! name.equals(CURRENT_FILE)
+                && ! name.equals(keptName)
+                && ! name.equals(otherKeptName)) {
+                file.delete();
+            }
+        }
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private static boolean isSha256(String sha256) {
+        return sha256 != null
+               && sha256.matches("[0-9a-fA-F]{64}");
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException exception) {
+            // Supported by every Android version
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static byte[] sha256(ByteBuffer buffer) {
+        MessageDigest digest = newSha256Digest();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("invalid SHA-256 " + hex);
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1
+                || low == -1) {
+                throw new IOException("invalid SHA-256 " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ * CobaltFileBundleSource
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link CobaltBundleSource} reading updates from a local folder, to test updates or install them from external storage.
+ * The folder contains the bundles and patches, described by an update.json file:
+ * {"version": "2", "sha256": "<SHA-256 of the bundle>", "bundle": "www-2.cbundle",
+ *  "patches": {"<SHA-256 of a previous bundle>": "www-1-2.cpatch"}}
+ */
+public final class CobaltFileBundleSource implements CobaltBundleSource {
+
+    private static final String MANIFEST_FILE = "update.json";
+    private static final String kVersion = "version";
+    private static final String kSha256 = "sha256";
+    private static final String kBundle = "bundle";
+    private static final String kPatches = "patches";
+
+    private final File mDirectory;
+
+    /**
+     * @param directory: the folder containing update.json
+     */
+    public CobaltFileBundleSource(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public CobaltBundleUpdate getUpdate(String currentVersion, String currentSha256) throws IOException {
+        File manifestFile = new File(mDirectory, MANIFEST_FILE);
+        if (! manifestFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject manifest = new JSONObject(readFile(manifestFile));
+            String version = manifest.getString(kVersion);
+            String sha256 = manifest.getString(kSha256);
+            if (version.equals(currentVersion)
+                || sha256.equalsIgnoreCase(currentSha256)) {
+                return null;
+            }
+
+            JSONObject patches = manifest.optJSONObject(kPatches);
+            if (patches != null
+                && currentSha256 != null) {
+                String patch = patches.optString(currentSha256.toLowerCase(), null);
+                if (patch != null) {
+                    return new CobaltBundleUpdate(version, sha256, patch, currentSha256);
+                }
+            }
+
+            return new CobaltBundleUpdate(version, sha256, manifest.getString(kBundle), null);
+        }
+        catch (JSONException exception) {
+            throw new IOException("Malformed " + MANIFEST_FILE + ": " + exception.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream open(CobaltBundleUpdate update) throws FileNotFoundException {
+        return new FileInputStream(new File(mDirectory, update.getLocation()));
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toString("UTF-8");
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/**
+ *
+ * CobaltHttpCacheInterceptor
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.database.CobaltDiskLruCache;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches on disk the http and https resources of the Web views whose controller declares a cacheMode in cobalt.conf,
+ * so that pages open from cache on slow or missing networks:
+ * - networkFirst fetches from the network, revalidating the cached response if any, and serves the cache when offline;
+ * - cacheFirst serves the cache if any, and fetches from the network otherwise;
+ * - staleWhileRevalidate serves the cache if any and revalidates it in background for the next load.
+ *
+ * Only GET responses of 200 OK up to 2MB are cached, unless marked Cache-Control no-store or private, varying on other headers
+ * than Accept-Encoding, setting cookies or answering a request with an Authorization header, which never reads from the cache.
+ * Other responses are streamed to the Web view as received, redirections being followed here since the Web view rejects 3xx
+ * intercepted responses: relative URLs of a redirected page resolve against the requested URL.
+ * Requests are only intercepted from Lollipop, the request method being unknown before.
+ */
+public final class CobaltHttpCacheInterceptor implements CobaltResourceInterceptor {
+
+    private static final String TAG = CobaltHttpCacheInterceptor.class.getSimpleName();
+
+    private static final String DISK_CACHE_DIRECTORY_NAME = "cobalt_http";
+    private static final long DISK_CACHE_MAX_SIZE = 16 * 1024 * 1024;
+    // Larger responses are served without being cached
+    private static final int MAX_RESPONSE_SIZE = 2 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int BUFFER_SIZE = 8192;
+
+    // Version of the serialized entries
+    private static final int ENTRY_VERSION = 1;
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_COOKIE = "Cookie";
+    private static final String HEADER_SET_COOKIE = "Set-Cookie";
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_LOCATION = "Location";
+    // Not forwarded: handled by HttpURLConnection, describing the encoded body rather than the one served,
+    // or conditions on the Web view cache, whose 304 responses could not be served
+    private static final String[] SKIPPED_HEADERS = {"Content-Encoding", "Content-Length", "Transfer-Encoding", "Connection",
+                                                     "Keep-Alive", "Accept-Encoding", HEADER_SET_COOKIE,
+                                                     CobaltWebResourceResponses.HEADER_IF_NONE_MATCH, HEADER_IF_MODIFIED_SINCE};
+
+    private static CobaltHttpCacheInterceptor sInstance;
+
+    private CobaltDiskLruCache mDiskCache;
+    private Handler mRevalidationHandler;
+    // URLs being revalidated in background. Guarded by this
+    private final HashSet<String> mPendingRevalidations = new HashSet<>();
+
+    // Guarded by this
+    private long mRequestCount;
+    private long mHitCount;
+    private long mOfflineHitCount;
+    private long mNetworkCount;
+    private long mRevalidationCount;
+    private long mNotModifiedCount;
+    private long mTotalRevalidationTime;
+    private long mMaxRevalidationTime;
+
+    private CobaltHttpCacheInterceptor() {
+
+    }
+
+    public static synchronized CobaltHttpCacheInterceptor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CobaltHttpCacheInterceptor();
+        }
+
+        return sInstance;
+    }
+
+    @Override
+    public WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders) {
+        String scheme = url.getScheme();
+        String cacheMode = fragment != null ? fragment.getCacheMode() : null;
+        if (cacheMode == null
+            || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+            || ! ("http".equals(scheme) || "https".equals(scheme))) {
+            return null;
+        }
+
+        CobaltDiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            mRequestCount++;
+        }
+
+        String key = url.toString();
+        // Responses to authenticated requests may be personal: they are neither served from nor written to the cache
+        Entry cachedEntry = CobaltWebResourceResponses.getHeader(requestHeaders, HEADER_AUTHORIZATION) == null ? readEntry(diskCache, key) : null;
+
+        switch (cacheMode) {
+            case Cobalt.CacheModeCacheFirst:
+                if (cachedEntry != null) {
+                    onHit(false);
+                    return cachedEntry.toResponse();
+                }
+                return fetch(diskCache, key, requestHeaders, null);
+
+            case Cobalt.CacheModeStaleWhileRevalidate:
+                if (cachedEntry != null) {
+                    onHit(false);
+                    revalidateInBackground(key, requestHeaders);
+                    return cachedEntry.toResponse();
+                }
+                return fetch(diskCache, key, requestHeaders, null);
+
+            case Cobalt.CacheModeNetworkFirst:
+                return fetch(diskCache, key, requestHeaders, cachedEntry);
+
+            default:
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - intercept: unknown cache mode " + cacheMode + ".");
+                return null;
+        }
+    }
+
+    /**
+     * Removes every cached response.
+     */
+    public void clear() {
+        final CobaltDiskLruCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            getRevalidationHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    diskCache.clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a snapshot of the cache statistics since the application started.
+     */
+    public synchronized CobaltHttpCacheStats getStats() {
+        return new CobaltHttpCacheStats(mRequestCount, mHitCount, mOfflineHitCount, mNetworkCount,
+                                        mRevalidationCount, mNotModifiedCount, mTotalRevalidationTime, mMaxRevalidationTime);
+    }
+
+    /*********************************************************
+     * NETWORK
+     *********************************************************/
+
+    /**
+     * Fetches the given URL from the network, revalidating the given cached entry if any, and caches the response.
+     * @return the response, the cached entry if the network is unreachable, or null to let the Web view handle the request
+     */
+    private WebResourceResponse fetch(CobaltDiskLruCache diskCache, String key, Map<String, String> requestHeaders, Entry cachedEntry) {
+        try {
+            return request(diskCache, key, requestHeaders, cachedEntry);
+        }
+        catch (IOException exception) {
+            if (cachedEntry != null) {
+                if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - fetch: " + key + " unreachable, serving it from cache.");
+                onHit(true);
+                return cachedEntry.toResponse();
+            }
+
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - fetch: " + key + " unreachable and not cached.");
+            return null;
+        }
+    }
+
+    private void revalidateInBackground(final String key, final Map<String, String> requestHeaders) {
+        synchronized (this) {
+            if (! mPendingRevalidations.add(key)) {
+                return;
+            }
+        }
+
+        getRevalidationHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CobaltDiskLruCache diskCache = getDiskCache();
+                    WebResourceResponse response = request(diskCache, key, requestHeaders, readEntry(diskCache, key));
+                    // Releases the connection of a streamed response
+                    if (response != null
+                        && response.getData() != null) {
+                        response.getData().close();
+                    }
+                }
+                catch (IOException exception) {
+                    if (Cobalt.DEBUG) Log.i(Cobalt.TAG, TAG + " - revalidateInBackground: " + key + " unreachable, keeping it in cache.");
+                }
+                finally {
+                    synchronized (CobaltHttpCacheInterceptor.this) {
+                        mPendingRevalidations.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests the given URL, conditionally if a cached entry is given, following redirections, and caches the response if allowed.
+     * @return the cached entry if not modified, the new entry, the response streamed from the network if it is not cached,
+     * or null if it could not be served from here
+     * @throws IOException if the network is unreachable
+     */
+    private WebResourceResponse request(CobaltDiskLruCache diskCache, String key, Map<String, String> requestHeaders, Entry cachedEntry) throws IOException {
+        long startTime = System.nanoTime();
+        String url = key;
+        HttpURLConnection connection = open(url, requestHeaders, cachedEntry);
+        boolean streamed = false;
+        try {
+            int statusCode = connection.getResponseCode();
+            storeCookies(connection, url);
+
+            for (int redirectCount = 0; isRedirect(statusCode); redirectCount++) {
+                String location = connection.getHeaderField(HEADER_LOCATION);
+                if (location == null
+                    || redirectCount == MAX_REDIRECTS) {
+                    break;
+                }
+
+                connection.disconnect();
+                url = new URL(new URL(url), location).toString();
+                connection = open(url, requestHeaders, null);
+                statusCode = connection.getResponseCode();
+                storeCookies(connection, url);
+            }
+
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                && cachedEntry != null) {
+                onRevalidated(true, System.nanoTime() - startTime);
+                return cachedEntry.toResponse();
+            }
+
+            if (cachedEntry != null) {
+                onRevalidated(false, System.nanoTime() - startTime);
+            }
+            else {
+                synchronized (this) {
+                    mNetworkCount++;
+                }
+            }
+
+            // The Web view rejects 3xx intercepted responses
+            if (statusCode >= 300
+                && statusCode < 400) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - request: " + key + " answered " + statusCode + ", leaving it to the Web view.");
+                return null;
+            }
+
+            String contentType = connection.getContentType();
+            HashMap<String, String> headers = getResponseHeaders(connection);
+            InputStream inputStream = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (inputStream == null) {
+                inputStream = new ByteArrayInputStream(new byte[0]);
+            }
+
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                streamed = true;
+                return createResponse(contentType, statusCode, connection.getResponseMessage(), headers,
+                                      new ConnectionInputStream(inputStream, connection));
+            }
+
+            boolean cacheable = url.equals(key)
+                                && isCacheable(connection, requestHeaders)
+                                && connection.getContentLength() <= MAX_RESPONSE_SIZE;
+            byte[] body = cacheable ? readBody(inputStream, MAX_RESPONSE_SIZE + 1) : null;
+            if (body == null
+                || body.length > MAX_RESPONSE_SIZE) {
+                diskCache.remove(key);
+
+                // Serves what was read so far followed by the rest of the response
+                InputStream data = body != null ? new SequenceInputStream(new ByteArrayInputStream(body), inputStream) : inputStream;
+                streamed = true;
+                return createResponse(contentType, statusCode, connection.getResponseMessage(), headers,
+                                      new ConnectionInputStream(data, connection));
+            }
+
+            inputStream.close();
+            Entry entry = new Entry(contentType, headers, body);
+            diskCache.put(key, entry.serialize());
+            return entry.toResponse();
+        }
+        finally {
+            if (! streamed) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection open(String url, Map<String, String> requestHeaders, Entry cachedEntry) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        // Redirections are followed in request, HttpURLConnection neither storing the cookies they set nor following them across protocols
+        connection.setInstanceFollowRedirects(false);
+
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (! isSkipped(header.getKey())) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        String cookie = CookieManager.getInstance().getCookie(url);
+        if (cookie != null) {
+            connection.setRequestProperty(HEADER_COOKIE, cookie);
+        }
+
+        if (cachedEntry != null) {
+            String etag = cachedEntry.mHeaders.get(CobaltWebResourceResponses.HEADER_ETAG);
+            String lastModified = cachedEntry.mHeaders.get(HEADER_LAST_MODIFIED);
+            if (etag != null) {
+                connection.setRequestProperty(CobaltWebResourceResponses.HEADER_IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        return connection;
+    }
+
+    private static void storeCookies(HttpURLConnection connection, String url) {
+        List<String> cookies = connection.getHeaderFields().get(HEADER_SET_COOKIE);
+        if (cookies != null) {
+            CookieManager cookieManager = CookieManager.getInstance();
+            for (String setCookie : cookies) {
+                cookieManager.setCookie(url, setCookie);
+            }
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case 307:
+            case 308:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the response may be cached and served to any later request of its URL.
+     */
+    private static boolean isCacheable(HttpURLConnection connection, Map<String, String> requestHeaders) {
+        if (CobaltWebResourceResponses.getHeader(requestHeaders, HEADER_AUTHORIZATION) != null
+            || connection.getHeaderField(HEADER_SET_COOKIE) != null) {
+            return false;
+        }
+
+        String cacheControl = connection.getHeaderField(CobaltWebResourceResponses.HEADER_CACHE_CONTROL);
+        if (cacheControl != null) {
+            String lowerCaseCacheControl = cacheControl.toLowerCase(Locale.US);
+            if (lowerCaseCacheControl.contains("no-store")
+                || lowerCaseCacheControl.contains("private")) {
+                return false;
+            }
+        }
+
+        // The cache is keyed on the URL only
+        String vary = connection.getHeaderField(HEADER_VARY);
+        if (vary != null) {
+            for (String header : vary.split(",")) {
+                String trimmedHeader = header.trim();
+                if (! trimmedHeader.isEmpty()
+                    && ! trimmedHeader.equalsIgnoreCase("Accept-Encoding")) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static HashMap<String, String> getResponseHeaders(HttpURLConnection connection) {
+        HashMap<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            // The status line has a null name
+            if (name != null
+                && ! isSkipped(name)
+                && ! header.getValue().isEmpty()) {
+                headers.put(name, header.getValue().get(header.getValue().size() - 1));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @return the first bytes of the given stream, at most maxLength, leaving the rest unread.
+     */
+    private static byte[] readBody(InputStream inputStream, int maxLength) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while (outputStream.size() < maxLength
+               && (length = inputStream.read(buffer, 0, Math.min(buffer.length, maxLength - outputStream.size()))) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static boolean isSkipped(String headerName) {
+        for (String skippedHeader : SKIPPED_HEADERS) {
+            if (skippedHeader.equalsIgnoreCase(headerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private synchronized CobaltDiskLruCache getDiskCache() {
+        if (mDiskCache == null) {
+            Context context = Cobalt.getAppContext();
+            if (context != null) {
+                mDiskCache = new CobaltDiskLruCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY_NAME), DISK_CACHE_MAX_SIZE);
+            }
+        }
+
+        return mDiskCache;
+    }
+
+    private synchronized Handler getRevalidationHandler() {
+        if (mRevalidationHandler == null) {
+            HandlerThread revalidationThread = new HandlerThread("CobaltHttpCache", Process.THREAD_PRIORITY_BACKGROUND);
+            revalidationThread.start();
+            mRevalidationHandler = new Handler(revalidationThread.getLooper());
+        }
+
+        return mRevalidationHandler;
+    }
+
+    private synchronized void onHit(boolean offline) {
+        mHitCount++;
+        if (offline) {
+            mOfflineHitCount++;
+        }
+    }
+
+    private synchronized void onRevalidated(boolean notModified, long durationNanos) {
+        mRevalidationCount++;
+        if (notModified) {
+            mNotModifiedCount++;
+        }
+        mTotalRevalidationTime += durationNanos;
+        mMaxRevalidationTime = Math.max(mMaxRevalidationTime, durationNanos);
+    }
+
+    private static WebResourceResponse createResponse(String contentType, int statusCode, String reasonPhrase,
+                                                      Map<String, String> headers, InputStream data) {
+        // Content-Type: text/html; charset=UTF-8
+        String[] contentTypeParts = (contentType != null ? contentType : "application/octet-stream").split(";");
+        String mimeType = contentTypeParts[0].trim();
+        String encoding = null;
+        for (int i = 1; i < contentTypeParts.length; i++) {
+            String parameter = contentTypeParts[i].trim();
+            if (parameter.toLowerCase(Locale.US).startsWith("charset=")) {
+                encoding = parameter.substring("charset=".length()).replace("\"", "");
+            }
+        }
+
+        if (statusCode == HttpURLConnection.HTTP_OK) {
+            return CobaltWebResourceResponses.ok(mimeType, encoding, headers, data);
+        }
+        else {
+            return CobaltWebResourceResponses.withStatus(mimeType, encoding, statusCode, reasonPhrase, headers, data);
+        }
+    }
+
+    private static Entry readEntry(CobaltDiskLruCache diskCache, String key) {
+        File file = diskCache.get(key);
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+            try {
+                return Entry.deserialize(inputStream);
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        catch (IOException exception) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - readEntry: unable to read cached " + key + ".");
+            diskCache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Body of a streamed response, disconnecting its connection once closed by the Web view.
+     */
+    private static final class ConnectionInputStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+
+        ConnectionInputStream(InputStream inputStream, HttpURLConnection connection) {
+            super(inputStream);
+            mConnection = connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                mConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Cached response: content type, headers and body.
+     */
+    private static final class Entry {
+        private final String mContentType;
+        private final HashMap<String, String> mHeaders;
+        private final byte[] mBody;
+
+        Entry(String contentType, HashMap<String, String> headers, byte[] body) {
+            mContentType = contentType != null ? contentType : "application/octet-stream";
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        WebResourceResponse toResponse() {
+            return createResponse(mContentType, HttpURLConnection.HTTP_OK, null, new HashMap<>(mHeaders), new ByteArrayInputStream(mBody));
+        }
+
+        byte[] serialize() throws IOException {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(mBody.length + 512);
+            DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+            outputStream.writeInt(ENTRY_VERSION);
+            outputStream.writeUTF(mContentType);
+            outputStream.writeInt(mHeaders.size());
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                outputStream.writeUTF(header.getKey());
+                outputStream.writeUTF(header.getValue());
+            }
+            outputStream.writeInt(mBody.length);
+            outputStream.write(mBody);
+            outputStream.flush();
+            return byteArrayOutputStream.toByteArray();
+        }
+
+        static Entry deserialize(DataInputStream inputStream) throws IOException {
+            if (inputStream.readInt() != ENTRY_VERSION) {
+                throw new IOException("Unsupported entry version");
+            }
+
+            String contentType = inputStream.readUTF();
+            int headerCount = inputStream.readInt();
+            HashMap<String, String> headers = new HashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                headers.put(inputStream.readUTF(), inputStream.readUTF());
+            }
+
+            int length = inputStream.readInt();
+            if (length < 0
+                || length > MAX_RESPONSE_SIZE) {
+                throw new IOException("Invalid entry length");
+            }
+            byte[] body = new byte[length];
+            inputStream.readFully(body);
+
+            return new Entry(contentType, headers, body);
+        }
+    }
+}
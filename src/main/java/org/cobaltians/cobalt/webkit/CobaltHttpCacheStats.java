@@ -0,0 +1,132 @@
+/**
+ *
+ * CobaltHttpCacheStats
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+/**
+ * Snapshot of the statistics of the {@link CobaltHttpCacheInterceptor}.
+ */
+public final class CobaltHttpCacheStats {
+
+    private final long mRequestCount;
+    private final long mHitCount;
+    private final long mOfflineHitCount;
+    private final long mNetworkCount;
+    private final long mRevalidationCount;
+    private final long mNotModifiedCount;
+    private final long mTotalRevalidationTime;
+    private final long mMaxRevalidationTime;
+
+    CobaltHttpCacheStats(long requestCount, long hitCount, long offlineHitCount, long networkCount,
+                         long revalidationCount, long notModifiedCount, long totalRevalidationTime, long maxRevalidationTime) {
+        mRequestCount = requestCount;
+        mHitCount = hitCount;
+        mOfflineHitCount = offlineHitCount;
+        mNetworkCount = networkCount;
+        mRevalidationCount = revalidationCount;
+        mNotModifiedCount = notModifiedCount;
+        mTotalRevalidationTime = totalRevalidationTime;
+        mMaxRevalidationTime = maxRevalidationTime;
+    }
+
+    /**
+     * @return the number of requests of Web views with a cache mode.
+     */
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of requests served from cache without waiting for the network, including offline hits.
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the share of requests served from cache without waiting for the network, between 0 and 1, or 0 if none was made.
+     */
+    public float getHitRate() {
+        return mRequestCount > 0 ? (float) mHitCount / mRequestCount : 0;
+    }
+
+    /**
+     * @return the number of requests served from cache because the network was unreachable.
+     */
+    public long getOfflineHitCount() {
+        return mOfflineHitCount;
+    }
+
+    /**
+     * @return the number of requests fetched from the network without cached response.
+     */
+    public long getNetworkCount() {
+        return mNetworkCount;
+    }
+
+    /**
+     * @return the number of conditional requests revalidating a cached response, in foreground or in background.
+     */
+    public long getRevalidationCount() {
+        return mRevalidationCount;
+    }
+
+    /**
+     * @return the number of revalidations answered with 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return mNotModifiedCount;
+    }
+
+    /**
+     * @return the average duration of revalidations, in nanoseconds, or 0 if none was made.
+     */
+    public long getAverageRevalidationTimeNanos() {
+        return mRevalidationCount > 0 ? mTotalRevalidationTime / mRevalidationCount : 0;
+    }
+
+    /**
+     * @return the longest duration of a revalidation, in nanoseconds.
+     */
+    public long getMaxRevalidationTimeNanos() {
+        return mMaxRevalidationTime;
+    }
+
+    @Override
+    public String toString() {
+        return "{requests: " + mRequestCount
+                + ", hits: " + mHitCount
+                + ", offline hits: " + mOfflineHitCount
+                + ", network: " + mNetworkCount
+                + ", revalidations: " + mRevalidationCount
+                + ", not modified: " + mNotModifiedCount
+                + ", average revalidation: " + getAverageRevalidationTimeNanos() / 1000000 + "ms"
+                + ", max revalidation: " + mMaxRevalidationTime / 1000000 + "ms}";
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ *
+ * CobaltImageInterceptor
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.database.CobaltImageCache;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the images of the {@link CobaltImageCache} to the Web views, at URLs returned by {@link #getImageUrl(String)},
+ * so that pages can display them in img tags without base64 strings going through the bridge.
+ *
+ * The format may be chosen with the format query parameter, jpeg, png or webp, and the quality with the quality parameter.
+ * Without format, an image only on disk is streamed as stored, otherwise it is compressed to PNG if it has alpha, else to JPEG.
+ * Responses carry an ETag and Cache-Control no-cache, but are always served in full, the Web view rejecting intercepted 304 responses.
+ * Pages loaded from files or bundles, whose origin is null, may draw the images on canvas; other origins may not read them.
+ */
+public final class CobaltImageInterceptor implements CobaltResourceInterceptor {
+
+    private static final String TAG = CobaltImageInterceptor.class.getSimpleName();
+
+    private static final String PATH_PREFIX = "/images/";
+    private static final String PARAMETER_FORMAT = "format";
+    private static final String PARAMETER_QUALITY = "quality";
+    private static final String FORMAT_JPEG = "jpeg";
+    private static final String FORMAT_PNG = "png";
+    private static final String FORMAT_WEBP = "webp";
+    private static final int DEFAULT_QUALITY = 90;
+
+    /**
+     * Returns the URL serving the image stored in the {@link CobaltImageCache} for the given id.
+     * @param id: the image id
+     * @return the image URL
+     */
+    public static String getImageUrl(String id) {
+        return CobaltResourceInterceptors.LOCAL_URL + PATH_PREFIX.substring(1) + Uri.encode(id);
+    }
+
+    @Override
+    public WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders) {
+        if (! CobaltResourceInterceptors.isLocalUrl(url, PATH_PREFIX)) {
+            return null;
+        }
+
+        // getPath is decoded
+        String id = url.getPath().substring(PATH_PREFIX.length());
+        String format = url.getQueryParameter(PARAMETER_FORMAT);
+        int quality = parseQuality(url.getQueryParameter(PARAMETER_QUALITY));
+
+        CobaltImageCache imageCache = CobaltImageCache.getInstance();
+        Bitmap image = imageCache.peekImage(id);
+        if (image == null
+            && format == null) {
+            // Streams the disk copy as is, without decoding it
+            File file = imageCache.getImageFile(id);
+            if (file != null) {
+                return serveFile(file, isFilePage(fragment));
+            }
+        }
+
+        if (image == null) {
+            image = imageCache.loadImage(id);
+        }
+        if (image == null) {
+            if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - intercept: no image for id " + id + ".");
+            return CobaltWebResourceResponses.notFound();
+        }
+
+        // Images handed out by the cache are never reused, so they may be compressed after being evicted
+        return serveImage(id, image, format, quality, isFilePage(fragment));
+    }
+
+    private static WebResourceResponse serveImage(String id, Bitmap image, String format, int quality, boolean filePage) {
+        Bitmap.CompressFormat compressFormat = getCompressFormat(format, image);
+        String etag = "\"m" + Integer.toHexString(System.identityHashCode(image))
+                      + "-" + image.getGenerationId()
+                      + "-" + compressFormat.name()
+                      + "-" + quality + "\"";
+        ExposedByteArrayOutputStream outputStream = new ExposedByteArrayOutputStream();
+        if (! image.compress(compressFormat, quality, outputStream)) {
+            if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - intercept: unable to compress image " + id + ".");
+            return CobaltWebResourceResponses.notFound();
+        }
+
+        return CobaltWebResourceResponses.ok(getMimeType(compressFormat), null, getHeaders(etag, filePage), outputStream.toInputStream());
+    }
+
+    /*********************************************************
+     * HELPERS
+     *********************************************************/
+
+    private static WebResourceResponse serveFile(File file, boolean filePage) {
+        String etag = "\"d" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            return CobaltWebResourceResponses.ok(sniffMimeType(file), null, getHeaders(etag, filePage), inputStream);
+        }
+        catch (FileNotFoundException exception) {
+            // Evicted meanwhile
+            return CobaltWebResourceResponses.notFound();
+        }
+    }
+
+    /**
+     * @return true if the page of the given fragment is loaded from a file, in the assets, a folder or a bundle.
+     */
+    private static boolean isFilePage(CobaltFragment fragment) {
+        String pageUrl = fragment != null ? fragment.getPageUrl() : null;
+        return pageUrl != null
+               && pageUrl.startsWith("file:");
+    }
+
+    private static Map<String, String> getHeaders(String etag, boolean filePage) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(CobaltWebResourceResponses.HEADER_ETAG, etag);
+        // Images may change for a same id, so they must be revalidated
+        headers.put(CobaltWebResourceResponses.HEADER_CACHE_CONTROL, "no-cache");
+        // Pages loaded from files have a null origin, which must be allowed to draw images on canvas.
+        // Remote pages and their frames are not, so that they cannot read the images of the application
+        if (filePage) {
+            headers.put(CobaltWebResourceResponses.HEADER_ACCESS_CONTROL_ALLOW_ORIGIN, "null");
+        }
+        return headers;
+    }
+
+    private static Bitmap.CompressFormat getCompressFormat(String format, Bitmap image) {
+        if (FORMAT_JPEG.equals(format)) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        else if (FORMAT_PNG.equals(format)) {
+            return Bitmap.CompressFormat.PNG;
+        }
+        else if (FORMAT_WEBP.equals(format)) {
+            return Bitmap.CompressFormat.WEBP;
+        }
+        else {
+            return image.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    private static String getMimeType(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    /**
+     * @return the MIME type of the given image file, read from its signature.
+     */
+    private static String sniffMimeType(File file) {
+        byte[] signature = new byte[12];
+        int length = 0;
+        try {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                length = inputStream.read(signature);
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+
+        if (length >= 4
+            && signature[0] == (byte) 0x89 && signature[1] == 'P' && signature[2] == 'N' && signature[3] == 'G') {
+            return "image/png";
+        }
+        else if (length >= 12
+                 && signature[0] == 'R' && signature[1] == 'I' && signature[2] == 'F' && signature[3] == 'F'
+                 && signature[8] == 'W' && signature[9] == 'E' && signature[10] == 'B' && signature[11] == 'P') {
+            return "image/webp";
+        }
+
+        return "image/jpeg";
+    }
+
+    private static int parseQuality(String quality) {
+        if (quality != null) {
+            try {
+                return Math.max(0, Math.min(100, Integer.parseInt(quality)));
+            }
+            catch (NumberFormatException exception) {
+                if (Cobalt.DEBUG) Log.w(Cobalt.TAG, TAG + " - parseQuality: invalid quality " + quality + ", using " + DEFAULT_QUALITY + ".");
+            }
+        }
+
+        return DEFAULT_QUALITY;
+    }
+
+    /**
+     * Gives its buffer to an input stream without copying it.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
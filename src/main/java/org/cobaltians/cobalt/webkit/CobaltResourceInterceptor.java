@@ -0,0 +1,54 @@
+/**
+ *
+ * CobaltResourceInterceptor
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.net.Uri;
+import android.webkit.WebResourceResponse;
+
+import java.util.Map;
+
+/**
+ * Serves requests of the Web views instead of the network or the file system.
+ * Interceptors are registered with {@link CobaltResourceInterceptors#add(CobaltResourceInterceptor)}
+ * and consulted in registration order until one returns a response.
+ */
+public interface CobaltResourceInterceptor {
+
+    /**
+     * Called on a background thread of the Web view for each of its requests.
+     * @param fragment: the fragment of the Web view
+     * @param url: the requested URL
+     * @param requestHeaders: the request headers, always empty before Lollipop
+     * @return the response, or null to let the next interceptor or the Web view handle the request
+     */
+    WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders);
+}
@@ -0,0 +1,123 @@
+/**
+ *
+ * CobaltResourceInterceptors
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import org.cobaltians.cobalt.Cobalt;
+import org.cobaltians.cobalt.fragments.CobaltFragment;
+
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the {@link CobaltResourceInterceptor}s consulted by the Web views of every {@link CobaltFragment}.
+ * Resources served by Cobalt itself use URLs starting with {@link #LOCAL_URL}, a host which is never resolved.
+ */
+public final class CobaltResourceInterceptors {
+
+    private static final String TAG = CobaltResourceInterceptors.class.getSimpleName();
+
+    /**
+     * Base URL of the resources served by Cobalt interceptors
+     */
+    public static final String LOCAL_URL = "https://cobalt.local/";
+    static final String LOCAL_HOST = "cobalt.local";
+
+    private static final CopyOnWriteArrayList<CobaltResourceInterceptor> sInterceptors = new CopyOnWriteArrayList<>();
+
+    static {
+        sInterceptors.add(new CobaltImageInterceptor());
+        sInterceptors.add(new CobaltBundleInterceptor());
+        sInterceptors.add(CobaltAssetInterceptor.getInstance());
+        sInterceptors.add(CobaltHttpCacheInterceptor.getInstance());
+    }
+
+    private CobaltResourceInterceptors() {
+
+    }
+
+    /**
+     * Registers the given interceptor, consulted after the ones already registered.
+     * @param interceptor: the interceptor
+     */
+    public static void add(CobaltResourceInterceptor interceptor) {
+        if (interceptor != null) {
+            sInterceptors.addIfAbsent(interceptor);
+        }
+        else if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - add: interceptor could not be null!");
+    }
+
+    /**
+     * Unregisters the given interceptor.
+     * @param interceptor: the interceptor
+     */
+    public static void remove(CobaltResourceInterceptor interceptor) {
+        sInterceptors.remove(interceptor);
+    }
+
+    /**
+     * Consults the registered interceptors in order.
+     * @return the first response, or null if no interceptor handles the request
+     */
+    public static WebResourceResponse intercept(CobaltFragment fragment, Uri url, Map<String, String> requestHeaders) {
+        if (url == null) {
+            return null;
+        }
+
+        for (CobaltResourceInterceptor interceptor : sInterceptors) {
+            try {
+                WebResourceResponse response = interceptor.intercept(fragment, url, requestHeaders);
+                if (response != null) {
+                    return response;
+                }
+            }
+            catch (RuntimeException exception) {
+                // A failing interceptor must not crash the Web view thread
+                if (Cobalt.DEBUG) Log.e(Cobalt.TAG, TAG + " - intercept: " + interceptor.getClass().getSimpleName() + " failed to intercept " + url + ".");
+                exception.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the given URL targets the resources served by Cobalt interceptors, under the given path prefix.
+     */
+    static boolean isLocalUrl(Uri url, String pathPrefix) {
+        String path = url.getPath();
+        return LOCAL_HOST.equals(url.getHost())
+               && path != null
+               && path.startsWith(pathPrefix);
+    }
+}
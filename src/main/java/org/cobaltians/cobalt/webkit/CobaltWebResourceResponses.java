@@ -0,0 +1,179 @@
+/**
+ *
+ * CobaltWebResourceResponses
+ * Cobalt
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Cobaltians
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cobaltians.cobalt.webkit;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds {@link WebResourceResponse}s. Status codes other than 200 and headers are only supported from Lollipop:
+ * before, error responses are null, letting the Web view fail the request itself.
+ */
+public final class CobaltWebResourceResponses {
+
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    public static final String HEADER_ACCESS_CONTROL_ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+
+    private CobaltWebResourceResponses() {
+
+    }
+
+    /**
+     * @param mimeType: the MIME type of the data
+     * @param encoding: the encoding of the data, or null
+     * @param headers: the response headers, ignored before Lollipop
+     * @param data: the data
+     * @return a 200 OK response
+     */
+    public static WebResourceResponse ok(String mimeType, String encoding, Map<String, String> headers, InputStream data) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return create(mimeType, encoding, 200, "OK", headers, data);
+        }
+        else {
+            return new WebResourceResponse(mimeType, encoding, data);
+        }
+    }
+
+    /**
+     * @return a 404 Not Found response, or null before Lollipop
+     */
+    public static WebResourceResponse notFound() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return create("text/plain", "UTF-8", 404, "Not Found", new HashMap<String, String>(), new ByteArrayInputStream(new byte[0]));
+        }
+
+        return null;
+    }
+
+    /**
+     * @param mimeType: the MIME type of the data
+     * @param encoding: the encoding of the data, or null
+     * @param statusCode: the status code, which the Web view rejects in the 3xx range
+     * @param reasonPhrase: the reason phrase, replaced by a generic one if empty or not printable ASCII
+     * @param headers: the response headers
+     * @param data: the data
+     * @return a response with the given status, or null before Lollipop
+     */
+    public static WebResourceResponse withStatus(String mimeType, String encoding, int statusCode, String reasonPhrase,
+                                                 Map<String, String> headers, InputStream data) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (! isPrintable(reasonPhrase)) {
+                reasonPhrase = "Status " + statusCode;
+            }
+            return create(mimeType, encoding, statusCode, reasonPhrase, headers, data);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the value of the given header, whose name is case-insensitive, or null if absent.
+     */
+    public static String getHeader(Map<String, String> headers, String name) {
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the MIME type of the given path, guessed from its extension.
+     */
+    static String getMimeType(String path) {
+        String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        switch (extension) {
+            case "html":
+            case "htm":
+                return "text/html";
+            case "js":
+                return "application/javascript";
+            case "css":
+                return "text/css";
+            case "json":
+                return "application/json";
+            case "svg":
+                return "image/svg+xml";
+            case "woff":
+                return "font/woff";
+            case "woff2":
+                return "font/woff2";
+            default:
+                String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+                return mimeType != null ? mimeType : "application/octet-stream";
+        }
+    }
+
+    /**
+     * @return the encoding of the resources of the given MIME type, UTF-8 for text, else null.
+     */
+    static String getEncoding(String mimeType) {
+        return mimeType.startsWith("text/")
+               || mimeType.endsWith("javascript")
+               || mimeType.endsWith("json")
+               || mimeType.endsWith("xml") ? "UTF-8" : null;
+    }
+
+    private static boolean isPrintable(String reasonPhrase) {
+        if (reasonPhrase == null
+            || reasonPhrase.trim().isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0; i < reasonPhrase.length(); i++) {
+            char character = reasonPhrase.charAt(i);
+            if (character < 0x20
+                || character > 0x7E) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressLint("NewApi")
+    private static WebResourceResponse create(String mimeType, String encoding, int statusCode, String reasonPhrase,
+                                              Map<String, String> headers, InputStream data) {
+        return new WebResourceResponse(mimeType, encoding, statusCode, reasonPhrase, headers, data);
+    }
+}